@@ -0,0 +1,16 @@
+#!/bin/sh
+# Builds and runs the JMH benchmarks. The server benchmarks start an in-process server from a copy
+# of configuration.xml and users.txt in bench/build, so any history they write stays there.
+# Arguments go to JMH, e.g.
+#   JMH_CLASSPATH=jmh-core.jar:jmh-generator-annprocess.jar:jopt-simple.jar:commons-math3.jar \
+#       bench/run.sh BroadcastBenchmark -p recipients=1000
+set -e
+cd "$(dirname "$0")/.."
+: "${JMH_CLASSPATH:?set it to jmh-core, jmh-generator-annprocess and their dependencies}"
+out=bench/build
+rm -rf "$out"
+mkdir -p "$out/classes"
+javac -proc:full -d "$out/classes" -cp "$JMH_CLASSPATH" $(find src bench -name '*.java' ! -name ZebraChatGUI.java)
+cp configuration.xml users.txt "$out"
+cd "$out"
+java -cp "classes:$JMH_CLASSPATH" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,56 @@
+package zebrachat.protocol;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Serialization of the two most frequent frames, with chat texts of different lengths.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"16", "256", "4096"})
+    int textLength;
+
+    private ChatMessage chat;
+    private SystemMessage system;
+    private ByteBuffer chatFrame;
+
+    @Setup
+    public void setUp() {
+        char[] text = new char[textLength];
+        Arrays.fill(text, 'z');
+        chat = new ChatMessage("КорольЗебра", new String(text));
+        chat.setReceiptTime(LocalDateTime.now());
+        chat.setId(1234567);
+        chat.setRoom(Protocol.DEFAULT_ROOM);
+        system = new SystemMessage(SystemMessage.Status.OK, "permission granted");
+        chatFrame = MessageEncoder.encode(chat);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeChatMessage() {
+        return MessageEncoder.encode(chat);
+    }
+
+    @Benchmark
+    public Object decodeChatMessage() throws Exception {
+        return MessageDecoder.decode(MessageDecoder.nextFrame(chatFrame.duplicate()));
+    }
+
+    @Benchmark
+    public Object roundTripChatMessage() throws Exception {
+        return MessageDecoder.decode(MessageDecoder.nextFrame(MessageEncoder.encode(chat)));
+    }
+
+    @Benchmark
+    public Object roundTripSystemMessage() throws Exception {
+        return MessageDecoder.decode(MessageDecoder.nextFrame(MessageEncoder.encode(system)));
+    }
+}
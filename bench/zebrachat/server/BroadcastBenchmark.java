@@ -0,0 +1,71 @@
+package zebrachat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.*;
+
+import zebrachat.protocol.ChatMessage;
+
+// One message through ZebraServer.broadcast, sequencing and the room worker to every member of
+// the room. Each operation waits until all recipients have the frame.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"1", "100", "1000"})
+    int recipients;
+
+    @Param({"64", "1024"})
+    int textLength;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final List<MemoryConnection> members = new ArrayList<>();
+    private ZebraServer server;
+    private Room room;
+    private String text;
+    private long expected;
+
+    @Setup
+    public void setUp() throws Exception {
+        ZebraServer.log.setLevel(Level.WARNING);
+        server = new ZebraServer();
+        server.open();
+        room = server.getDefaultRoom();
+        for (int i = 0; i < recipients; i++) {
+            MemoryConnection member = new MemoryConnection(server, "user" + i, delivered);
+            member.addRoom(room);
+            room.addMember(member);
+            members.add(member);
+        }
+        char[] chars = new char[textLength];
+        Arrays.fill(chars, 'z');
+        text = new String(chars);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (MemoryConnection member : members) {
+            member.close();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    public long broadcast() {
+        expected += recipients;
+        server.broadcast(room, new ChatMessage("user0", text));
+        long count;
+        while ((count = delivered.get()) < expected) {
+            Thread.onSpinWait();
+        }
+        return count;
+    }
+}
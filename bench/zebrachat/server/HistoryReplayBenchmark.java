@@ -0,0 +1,62 @@
+package zebrachat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.openjdk.jmh.annotations.*;
+
+import zebrachat.protocol.ChatMessage;
+
+// History sent to a member entering a room: the newest page for a fresh join, or everything
+// after its last seen message for a member resuming after `missed` messages. With an in-memory
+// history, retainedMessagesNumber caps what can be resumed; beyond it this measures the fallback.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryReplayBenchmark {
+    @Param({"1000", "100000"})
+    int historySize;
+
+    @Param({"0", "100", "1000"})
+    int missed;
+
+    private final AtomicLong delivered = new AtomicLong();
+    private ZebraServer server;
+    private Room room;
+    private MemoryConnection member;
+    private long lastSeenId;
+
+    @Setup
+    public void setUp() throws Exception {
+        ZebraServer.log.setLevel(Level.WARNING);
+        server = new ZebraServer();
+        server.open();
+        room = server.getDefaultRoom();
+        MessageStore history = room.getHistory();
+        long end = history.nextPosition() + historySize;
+        for (int i = 0; i < historySize; i++) {
+            server.broadcast(room, new ChatMessage("user" + (i % 10), "message number " + i));
+        }
+        while (history.nextPosition() < end) {
+            Thread.sleep(10);
+        }
+        lastSeenId = missed == 0 ? 0 : history.id(history.nextPosition() - 1 - missed);
+        member = new MemoryConnection(server, "replay", delivered);
+    }
+
+    @TearDown
+    public void tearDown() {
+        member.close();
+        server.close();
+    }
+
+    @Benchmark
+    public long forwardMessages() {
+        server.forwardMessages(member, room, lastSeenId);
+        return member.bytes;
+    }
+}
@@ -0,0 +1,53 @@
+package zebrachat.server;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Password verification for a returning user (cached), a user whose login has to run the full key
+// derivation (uncached), and an unknown user, which must cost as much as an uncached login.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    private Path file;
+    private FileCredentialStore cached;
+    private FileCredentialStore uncached;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = Files.createTempFile("zebrachat-users", ".txt");
+        Files.write(file, Collections.singletonList(FileCredentialStore.entry("zebra", "stripes")),
+                StandardCharsets.UTF_8);
+        cached = new FileCredentialStore(file, 16);
+        cached.verify("zebra", "stripes");
+        uncached = new FileCredentialStore(file, 0);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public boolean cachedLogin() {
+        return cached.verify("zebra", "stripes");
+    }
+
+    @Benchmark
+    public boolean uncachedLogin() {
+        return uncached.verify("zebra", "stripes");
+    }
+
+    @Benchmark
+    public boolean unknownUser() {
+        return uncached.verify("horse", "stripes");
+    }
+}
@@ -0,0 +1,44 @@
+package zebrachat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A connection whose frames go nowhere: whatever is queued is drained on the spot and counted.
+class MemoryConnection extends Connection {
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+    private final AtomicLong delivered;
+    long bytes;
+
+    MemoryConnection(ZebraServer server, String username, AtomicLong delivered) throws IOException {
+        super(SocketChannel.open(), server);
+        this.delivered = delivered;
+        setUsername(username);
+    }
+
+    @Override
+    void frameQueued() {
+        int count;
+        while ((count = outbound.drainTo(batch, Integer.MAX_VALUE)) > 0) {
+            for (int i = 0; i < count; i++) {
+                bytes += batch[i].remaining();
+                batch[i] = null;
+            }
+            delivered.addAndGet(count);
+        }
+    }
+
+    @Override
+    void evict() {
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to flush
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package zebrachat.server;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zebrachat.protocol.ChatMessage;
+
+// Searching one room's index of `messages` messages for the newest page of matches. Words are
+// drawn from a skewed vocabulary, so "common" is in most messages and "rare" in few; the sender
+// is one of 1000 users.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class SearchBenchmark {
+    private static final int PAGE_SIZE = 50;
+
+    @Param({"100000", "2000000"})
+    int messages;
+
+    @Param({"common", "rare", "common rare", "rare user"})
+    String query;
+
+    private SearchIndex index;
+    private List<String> terms;
+    private String username;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        LocalDateTime start = LocalDateTime.now().minusSeconds(messages);
+        index = new SearchIndex();
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int words = 5 + random.nextInt(10); words > 0; words--) {
+                // Word k is roughly twice as likely as word 2k.
+                text.append('w').append((int) Math.pow(2, random.nextDouble(14))).append(' ');
+            }
+            ChatMessage message = new ChatMessage("user" + random.nextInt(1000), text.toString());
+            message.setReceiptTime(start.plusSeconds(i));
+            index.add(i, message);
+        }
+        terms = switch (query) {
+            case "common" -> List.of("w1");
+            case "rare", "rare user" -> List.of("w9000");
+            default -> List.of("w1", "w9000");
+        };
+        username = query.endsWith("user") ? "user7" : null;
+    }
+
+    @Benchmark
+    public long[] search() {
+        return index.search(terms, username, Long.MIN_VALUE, Long.MAX_VALUE, messages, PAGE_SIZE + 1);
+    }
+}
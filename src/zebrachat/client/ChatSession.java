@@ -0,0 +1,430 @@
+package zebrachat.client;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.*;
+
+// A logged-in connection to the server, driven by a ClientEventLoop. Requests can be sent from
+// any thread and never wait for the socket: each is encoded by the caller and queued, and the
+// I/O thread writes whatever has been queued in one gathering write. The returned futures
+// complete once the request has been written, or fail if the session closes first.
+public class ChatSession implements Closeable, Flow.Subscription {
+    private static final Logger log = Logger.getLogger("zebrachat.client");
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BATCH_FRAMES = 64;
+    private static final int FLUSH_BYTES = 64 * 1024;
+    // Sends fail rather than queue more than this while the server is not keeping up.
+    private static final long MAX_QUEUED_BYTES = 4 << 20;
+
+    private enum State { CONNECTING, LOGGING_IN, WAITING_FOR_PERMISSION, OPEN, CLOSED }
+
+    private final ClientEventLoop loop;
+    private final String username;
+    private final MessageSubscriber subscriber;
+    private final CompletableFuture<ChatSession> opened = new CompletableFuture<>();
+    private volatile long lastSeenId;
+
+    private final Queue<PendingWrite> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicLong demand = new AtomicLong();
+    private volatile boolean closed;
+
+    // Only used on the I/O thread.
+    private State state = State.CONNECTING;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private boolean endOfStream;
+    private boolean reading;
+    // The batch being written; frames from batchStart on have not been fully written yet.
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+    private final CompletableFuture<?>[] batchWritten = new CompletableFuture<?>[MAX_BATCH_FRAMES];
+    private int batchStart;
+    private int batchEnd;
+
+    private static final class PendingWrite {
+        final ByteBuffer frame;
+        final CompletableFuture<Void> written;
+
+        PendingWrite(ByteBuffer frame, CompletableFuture<Void> written) {
+            this.frame = frame;
+            this.written = written;
+        }
+    }
+
+    ChatSession(ClientEventLoop loop, String username, String password, long lastSeenId,
+            MessageSubscriber subscriber) {
+        this.loop = loop;
+        this.username = username;
+        this.lastSeenId = lastSeenId;
+        this.subscriber = subscriber;
+        // The login goes out as soon as the connection is established, without a round trip.
+        queue(ByteBuffer.wrap(Protocol.preamble()));
+        queue(MessageEncoder.encode(new LoginRequest(username, password, lastSeenId)));
+    }
+
+    CompletableFuture<ChatSession> opened() {
+        return opened;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // Resuming with this after a disconnect makes the server send only what was missed.
+    public long getLastSeenId() {
+        return lastSeenId;
+    }
+
+    public CompletableFuture<Void> sendChatMessage(String text) {
+        return sendChatMessage(null, text);
+    }
+
+    public CompletableFuture<Void> sendChatMessage(String room, String text) {
+        return queue(MessageEncoder.encode(new ChatMessage(room, username, text)));
+    }
+
+    // The server answers with the newest page of the room, or with what was missed since
+    // lastSeenId if that is non-zero and still stored.
+    public CompletableFuture<Void> joinRoom(String room, long lastSeenId) {
+        return queue(MessageEncoder.encode(new RoomRequest(RoomRequest.Action.JOIN, room, lastSeenId)));
+    }
+
+    public CompletableFuture<Void> joinRoom(String room) {
+        return joinRoom(room, 0);
+    }
+
+    public CompletableFuture<Void> leaveRoom(String room) {
+        return queue(MessageEncoder.encode(RoomRequest.leave(room)));
+    }
+
+    // The answer arrives as a RoomList.
+    public CompletableFuture<Void> listRooms() {
+        return queue(MessageEncoder.encode(RoomRequest.list()));
+    }
+
+    // Held for the recipient if they are not logged in.
+    public CompletableFuture<Void> sendDirectMessage(String recipient, String text) {
+        return queue(MessageEncoder.encode(new DirectMessage(recipient, text)));
+    }
+
+    public CompletableFuture<Void> setStatus(UserStatus status) {
+        return queue(MessageEncoder.encode(new StatusUpdate(status)));
+    }
+
+    // The answer arrives as a HistoryPage.
+    public CompletableFuture<Void> requestHistory(String room, long beforeId, int pageSize) {
+        return queue(MessageEncoder.encode(new HistoryRequest(room, beforeId, pageSize)));
+    }
+
+    // The answer arrives as a SearchResult.
+    public CompletableFuture<Void> search(SearchRequest request) {
+        return queue(MessageEncoder.encode(request));
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            loop.execute(() -> closeNow(new IllegalArgumentException("Non-positive request: " + n)));
+            return;
+        }
+        long previous = demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+        if (previous == 0) {
+            loop.execute(this::deliver);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        close();
+    }
+
+    @Override
+    public void close() {
+        loop.execute(() -> closeNow(null));
+    }
+
+    private CompletableFuture<Void> queue(ByteBuffer frame) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Session closed"));
+        }
+        if (queuedBytes.get() > MAX_QUEUED_BYTES) {
+            return CompletableFuture.failedFuture(new IOException("Send queue full"));
+        }
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        queuedBytes.addAndGet(frame.remaining());
+        queued.add(new PendingWrite(frame, written));
+        scheduleWrite();
+        return written;
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    void connect(InetSocketAddress address) {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            // Every batch is written as a whole, so Nagle's algorithm would only delay it.
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(address);
+            key = channel.register(loop.selector(), connected ? 0 : SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                connected();
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    void handleConnect() {
+        try {
+            if (channel.finishConnect()) {
+                connected();
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    private void connected() {
+        state = State.LOGGING_IN;
+        key.interestOps(SelectionKey.OP_READ);
+        reading = true;
+        flush();
+    }
+
+    void handleRead() {
+        try {
+            if (channel.read(readBuffer) < 0) {
+                endOfStream = true;
+            }
+        } catch (IOException e) {
+            closeNow(e);
+            return;
+        }
+        deliver();
+    }
+
+    void handleWrite() {
+        flush();
+    }
+
+    // Decodes and delivers buffered messages while there is demand, then reads from the socket
+    // only if there still is.
+    private void deliver() {
+        if (state == State.CLOSED || state == State.CONNECTING) {
+            return;
+        }
+        try {
+            readBuffer.flip();
+            try {
+                ByteBuffer body;
+                while (state != State.CLOSED && (state != State.OPEN || demand.get() > 0)
+                        && (body = MessageDecoder.nextFrame(readBuffer)) != null) {
+                    process(MessageDecoder.decode(body));
+                }
+            } finally {
+                readBuffer.compact();
+                if (!readBuffer.hasRemaining()) {
+                    growReadBuffer();
+                }
+            }
+        } catch (IOException e) {
+            closeNow(e);
+            return;
+        }
+        if (state == State.CLOSED) {
+            return;
+        }
+        boolean wanted = state != State.OPEN || demand.get() > 0;
+        if (endOfStream && wanted) {
+            // Everything received has been delivered.
+            closeNow(state == State.OPEN ? null : new EOFException("Connection closed during login"));
+        } else if (wanted != reading) {
+            reading = wanted;
+            key.interestOps(wanted ? key.interestOps() | SelectionKey.OP_READ : key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void growReadBuffer() throws ProtocolException {
+        if (readBuffer.capacity() >= Protocol.MAX_FRAME_LENGTH + 5) {
+            throw new ProtocolException("Frame exceeds maximum length");
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, Protocol.MAX_FRAME_LENGTH + 5));
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
+    }
+
+    // The server answers a login with two system messages: whether the credentials were
+    // accepted, then whether there is room for the user.
+    private void process(Object message) throws ProtocolException {
+        if (state != State.OPEN) {
+            if (!(message instanceof SystemMessage)) {
+                throw new ProtocolException("Unexpected message during login: " + message);
+            }
+            SystemMessage reply = (SystemMessage) message;
+            if (reply.getStatus() != SystemMessage.Status.OK) {
+                closeNow(new IOException(reply.getMessage()));
+            } else if (state == State.LOGGING_IN) {
+                state = State.WAITING_FOR_PERMISSION;
+            } else {
+                state = State.OPEN;
+                subscriber.onSubscribe(this);
+                opened.complete(this);
+            }
+            return;
+        }
+
+        if (demand.get() != Long.MAX_VALUE) {
+            demand.decrementAndGet();
+        }
+        try {
+            if (message instanceof ChatMessage) {
+                ChatMessage chatMessage = (ChatMessage) message;
+                lastSeenId = Math.max(lastSeenId, chatMessage.getId());
+                subscriber.onChatMessage(chatMessage);
+            } else if (message instanceof HistoryPage) {
+                HistoryPage page = (HistoryPage) message;
+                if (!page.getMessages().isEmpty()) {
+                    lastSeenId = Math.max(lastSeenId, page.getMessages().get(page.getMessages().size() - 1).getId());
+                }
+                subscriber.onHistoryPage(page);
+            } else if (message instanceof SearchResult) {
+                subscriber.onSearchResult((SearchResult) message);
+            } else if (message instanceof RoomList) {
+                subscriber.onRoomList((RoomList) message);
+            } else if (message instanceof DirectMessage) {
+                subscriber.onDirectMessage((DirectMessage) message);
+            } else if (message instanceof Roster) {
+                subscriber.onRoster((Roster) message);
+            } else if (message instanceof SystemMessage) {
+                subscriber.onSystemMessage((SystemMessage) message);
+            }
+        } catch (RuntimeException e) {
+            closeNow(e);
+        }
+    }
+
+    private void flush() {
+        if (state == State.CLOSED) {
+            failQueued(new IOException("Session closed"));
+            writeScheduled.set(false);
+            return;
+        }
+        if (state == State.CONNECTING) {
+            // Written once connected.
+            return;
+        }
+        try {
+            while (true) {
+                if (batchStart == batchEnd) {
+                    batchStart = 0;
+                    batchEnd = 0;
+                    int bytes = 0;
+                    PendingWrite next;
+                    while (batchEnd < MAX_BATCH_FRAMES && bytes < FLUSH_BYTES && (next = queued.poll()) != null) {
+                        batch[batchEnd] = next.frame;
+                        batchWritten[batchEnd++] = next.written;
+                        bytes += next.frame.remaining();
+                    }
+                    if (batchEnd == 0) {
+                        break;
+                    }
+                }
+                channel.write(batch, batchStart, batchEnd - batchStart);
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    queuedBytes.addAndGet(-batch[batchStart].limit());
+                    CompletableFuture<?> written = batchWritten[batchStart];
+                    batch[batchStart] = null;
+                    batchWritten[batchStart++] = null;
+                    written.complete(null);
+                }
+                if (batchStart < batchEnd) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+            if (!queued.isEmpty()) {
+                scheduleWrite();
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    private void failQueued(IOException failure) {
+        PendingWrite pending;
+        while ((pending = queued.poll()) != null) {
+            pending.written.completeExceptionally(failure);
+        }
+    }
+
+    // Called on the I/O thread; error is null for an orderly close by either side.
+    void closeNow(Throwable error) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        State previous = state;
+        state = State.CLOSED;
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error while closing session of " + username, e);
+        }
+        IOException failure = error instanceof IOException ? (IOException) error : new IOException("Session closed", error);
+        for (int i = batchStart; i < batchEnd; i++) {
+            batchWritten[i].completeExceptionally(failure);
+            batch[i] = null;
+            batchWritten[i] = null;
+        }
+        batchStart = 0;
+        batchEnd = 0;
+        // Sends racing with the close are failed here or by the flush they schedule.
+        writeScheduled.set(false);
+        failQueued(failure);
+
+        if (previous != State.OPEN) {
+            opened.completeExceptionally(error != null ? error : new EOFException("Session closed during login"));
+            return;
+        }
+        try {
+            if (error != null) {
+                subscriber.onError(error);
+            } else {
+                subscriber.onComplete();
+            }
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Subscriber of " + username + " failed while closing", e);
+        }
+    }
+}
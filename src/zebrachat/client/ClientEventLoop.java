@@ -0,0 +1,106 @@
+package zebrachat.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// One I/O thread serving any number of ChatSessions. Sessions never block it: connecting,
+// reading, writing and delivering messages to subscribers all happen as the selector reports
+// sockets ready. Completions of the futures returned by sessions run on this thread too, so
+// dependent actions must not block either.
+public class ClientEventLoop implements Closeable {
+    private static final Logger log = Logger.getLogger("zebrachat.client");
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public ClientEventLoop() throws IOException {
+        this("zebrachat-client-io");
+    }
+
+    public ClientEventLoop(String threadName) throws IOException {
+        selector = Selector.open();
+        thread = Thread.ofPlatform().daemon().name(threadName).start(this::run);
+    }
+
+    // Logs in as the given user. The future completes with the session once the server has let
+    // it in, by which time the subscriber has been subscribed, or fails with the server's reason.
+    public CompletableFuture<ChatSession> connect(String hostName, int port, String username, String password,
+            long lastSeenId, MessageSubscriber subscriber) {
+        // Resolved here so that a slow DNS lookup holds up the caller, not every session.
+        InetSocketAddress address = new InetSocketAddress(hostName, port);
+        if (address.isUnresolved()) {
+            return CompletableFuture.failedFuture(new UnknownHostException(hostName));
+        }
+        ChatSession session = new ChatSession(this, username, password, lastSeenId, subscriber);
+        execute(() -> session.connect(address));
+        return session.opened();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChatSession session = (ChatSession) key.attachment();
+                    if (key.isValid() && key.isConnectable()) {
+                        session.handleConnect();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        session.handleRead();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.handleWrite();
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+            } catch (Exception e) {
+                log.log(Level.SEVERE, "Unexpected client event loop exception", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((ChatSession) key.attachment()).closeNow(null);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error while closing selector", e);
+        }
+    }
+
+    // Closes every session; their subscribers are completed.
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
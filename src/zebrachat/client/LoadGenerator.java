@@ -0,0 +1,281 @@
+package zebrachat.client;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.ChatMessage;
+import zebrachat.protocol.HistoryPage;
+import zebrachat.protocol.LatencyHistogram;
+import zebrachat.protocol.Protocol;
+import zebrachat.protocol.SystemMessage;
+
+// Headless load test: opens many ChatSessions, spread over a few ClientEventLoop I/O threads,
+// sends chat messages at a fixed total rate and measures the time from sending a message to every delivery
+// of it. Latency is measured from when a message was due to be sent, not from when it actually
+// was, so a stalled server shows up in the percentiles rather than just slowing the test down.
+//
+// The users are <prefix>0 to <prefix><sessions - 1>; their credentials can be generated with
+//   java zebrachat.server.FileCredentialStore users.txt --generate load 1000 secret 1000
+//
+// All sessions come from one address, so the server's per-address message limit applies to the
+// total rate: at the default messagesPerSecondPerAddress of 200 most of the default 1000 messages a
+// second would be dropped. Run the server with messagesPerSecondPerAddress set to 0 (or above the
+// rate), and messagesPerSecondPerUser above rate / sessions. Throttling notices are counted in the
+// report.
+public class LoadGenerator {
+    private static final Logger log = Logger.getLogger("zebrachat.client");
+    private static final int MAXIMUM_CONCURRENT_CONNECTS = 256;
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final int sessions;
+    private final String prefix;
+    private final String password;
+    private final int rate;
+    private final long durationSeconds;
+    private final long warmupSeconds;
+    private final int messageSize;
+    private final int roomCount;
+    private final int ioThreads;
+
+    private final List<Session> connected = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger failedSessions = new AtomicInteger();
+    private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    LoadGenerator(Map<String, String> options) {
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "1234"));
+        sessions = Integer.parseInt(options.getOrDefault("sessions", "100"));
+        prefix = options.getOrDefault("prefix", "load");
+        password = options.getOrDefault("password", "secret");
+        rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        durationSeconds = Long.parseLong(options.getOrDefault("duration", "30"));
+        warmupSeconds = Long.parseLong(options.getOrDefault("warmup", "5"));
+        messageSize = Integer.parseInt(options.getOrDefault("size", "100"));
+        roomCount = Integer.parseInt(options.getOrDefault("rooms", "1"));
+        ioThreads = Integer.parseInt(options.getOrDefault("ioThreads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+    }
+
+    private final class Session implements MessageSubscriber {
+        final String username;
+        final String room;
+        ChatSession chat;
+
+        Session(String username, String room) {
+            this.username = username;
+            this.room = room;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        // Load messages start with the nanoTime they were due at; anything else is ignored.
+        @Override
+        public void onChatMessage(ChatMessage message) {
+            long now = System.nanoTime();
+            String text = message.getText();
+            if (message.getUsername() == null || !message.getUsername().startsWith(prefix) || text == null) {
+                return;
+            }
+            int space = text.indexOf(' ');
+            long due;
+            try {
+                due = Long.parseLong(space < 0 ? text : text.substring(0, space));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            delivered.incrementAndGet();
+            if (due >= measureFrom) {
+                latencies.record(TimeUnit.NANOSECONDS.toMicros(now - due));
+            }
+        }
+
+        // History replayed on joining is from before the test.
+        @Override
+        public void onHistoryPage(HistoryPage page) {
+        }
+
+        // E.g. the server dropping messages over its rate limits.
+        @Override
+        public void onSystemMessage(SystemMessage message) {
+            if (message.getStatus() == SystemMessage.Status.ERROR && errors.getAndIncrement() == 0) {
+                log.warning("Error from server to " + username + ": " + message.getMessage());
+            }
+        }
+    }
+
+    private String roomOf(int session) {
+        return roomCount <= 1 ? Protocol.DEFAULT_ROOM : "load-" + session % roomCount;
+    }
+
+    // Logins are pipelined, so only the number in flight is limited.
+    private void connect(ClientEventLoop loop, int index, Semaphore connects, CountDownLatch ready)
+            throws InterruptedException {
+        Session session = new Session(prefix + index, roomOf(index));
+        connects.acquire();
+        loop.connect(host, port, session.username, password, 0, session).whenComplete((chat, error) -> {
+            connects.release();
+            if (error != null) {
+                failedSessions.incrementAndGet();
+                firstFailure.compareAndSet(null, error);
+            } else {
+                session.chat = chat;
+                if (roomCount > 1) {
+                    chat.joinRoom(session.room);
+                }
+                connected.add(session);
+            }
+            ready.countDown();
+        });
+    }
+
+    void run() throws InterruptedException, IOException {
+        ClientEventLoop[] loops = new ClientEventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new ClientEventLoop("zebrachat-load-io-" + i);
+        }
+        try {
+            run(loops);
+        } finally {
+            for (ClientEventLoop loop : loops) {
+                loop.close();
+            }
+        }
+    }
+
+    private void run(ClientEventLoop[] loops) throws InterruptedException {
+        Semaphore connects = new Semaphore(MAXIMUM_CONCURRENT_CONNECTS);
+        CountDownLatch ready = new CountDownLatch(sessions);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            connect(loops[i % loops.length], i, connects, ready);
+        }
+        ready.await();
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        System.out.printf("Connected %d of %d sessions in %.1f s%n", connected.size(), sessions, connectSeconds);
+        if (firstFailure.get() != null) {
+            System.out.println("First failed session: " + firstFailure.get().getMessage());
+        }
+        if (connected.isEmpty()) {
+            return;
+        }
+        // Everyone has joined once their join requests have been answered; give them a moment.
+        Thread.sleep(500);
+
+        Session[] senders = connected.toArray(new Session[0]);
+        char[] padding = new char[Math.max(0, messageSize - 20)];
+        Arrays.fill(padding, 'z');
+        String suffix = " " + new String(padding);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long sent = 0;
+        long failedSends = 0;
+        long sentMeasured = 0;
+        long expected = 0;
+        int[] roomSizes = roomSizes(senders);
+
+        for (long due = start; due < end; due += intervalNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Session sender = senders[(int) ((sent + failedSends) % senders.length)];
+            // Sends are queued, not written, so only a closed session or a full queue fails here.
+            CompletableFuture<Void> written = sender.chat.sendChatMessage(sender.room, due + suffix);
+            if (written.isCompletedExceptionally()) {
+                if (failedSends++ == 0) {
+                    log.log(Level.WARNING, "Error while sending as " + sender.username, written.exceptionNow());
+                }
+                continue;
+            }
+            sent++;
+            expected += roomSizes[roomIndex(sender.room)];
+            if (due >= measureFrom) {
+                sentMeasured++;
+            }
+        }
+        long sendEnd = System.nanoTime();
+
+        long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+        while (delivered.get() < expected && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        for (Session session : senders) {
+            session.chat.close();
+        }
+        report(sent, failedSends, sentMeasured, expected, (sendEnd - measureFrom) / 1e9);
+    }
+
+    private int roomIndex(String room) {
+        return roomCount <= 1 ? 0 : Integer.parseInt(room.substring("load-".length()));
+    }
+
+    private int[] roomSizes(Session[] sessions) {
+        int[] sizes = new int[Math.max(1, roomCount)];
+        for (Session session : sessions) {
+            sizes[roomIndex(session.room)]++;
+        }
+        return sizes;
+    }
+
+    private void report(long sent, long failedSends, long sentMeasured, long expected, double measuredSeconds) {
+        System.out.printf("Sessions:   %d connected, %d failed%n", connected.size(), failedSessions.get());
+        System.out.printf("Sent:       %d messages, %d after warm-up (%.0f/s), %d failed%n",
+                sent, sentMeasured, sentMeasured / measuredSeconds, failedSends);
+        System.out.printf("Delivered:  %d of %d expected (%.0f/s measured)%n",
+                delivered.get(), expected, latencies.getTotalCount() / measuredSeconds);
+        System.out.printf("Errors:     %d notices from the server%n", errors.get());
+        System.out.printf("Latency ms: mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  p99.99 %.3f  max %.3f%n",
+                latencies.getMean() / 1000,
+                latencies.getValueAtPercentile(50) / 1000.0,
+                latencies.getValueAtPercentile(90) / 1000.0,
+                latencies.getValueAtPercentile(99) / 1000.0,
+                latencies.getValueAtPercentile(99.9) / 1000.0,
+                latencies.getValueAtPercentile(99.99) / 1000.0,
+                latencies.getMax() / 1000.0);
+    }
+
+    // Options are given as --name value pairs: host, port, sessions, prefix, password, rate
+    // (messages per second in total), duration and warmup (seconds), size (bytes per message) and
+    // rooms (sessions are spread over that many rooms, which bounds the fan-out of each message)
+    // and ioThreads (the sessions are spread over that many I/O threads; one per core by default).
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                break;
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (args.length % 2 != 0 || options.size() * 2 != args.length) {
+            System.err.println("Usage: java zebrachat.client.LoadGenerator [--host h] [--port p] [--sessions n]"
+                    + " [--prefix user] [--password pw] [--rate msgs/s] [--duration s] [--warmup s] [--size bytes]"
+                    + " [--rooms n] [--ioThreads n]");
+            System.exit(1);
+        }
+        Logger.getLogger("zebrachat.client").setLevel(Level.WARNING);
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+}
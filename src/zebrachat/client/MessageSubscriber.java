@@ -0,0 +1,56 @@
+package zebrachat.client;
+
+import java.util.concurrent.Flow;
+
+import zebrachat.protocol.ChatMessage;
+import zebrachat.protocol.DirectMessage;
+import zebrachat.protocol.HistoryPage;
+import zebrachat.protocol.RoomList;
+import zebrachat.protocol.Roster;
+import zebrachat.protocol.SearchResult;
+import zebrachat.protocol.SystemMessage;
+
+// Receives what the server sends to a ChatSession, in the manner of a Flow.Subscriber: once the
+// session is open onSubscribe is called, and after that only as many messages are delivered as
+// have been requested through the subscription. Without demand the session stops reading from
+// its socket, so a slow subscriber holds the server back instead of piling up messages here.
+//
+// All methods are called on the I/O thread of the session's ClientEventLoop and must not block;
+// request(n) may be called from any thread.
+public interface MessageSubscriber {
+    void onSubscribe(Flow.Subscription subscription);
+
+    void onChatMessage(ChatMessage message);
+
+    // A page counts as one message, however many chat messages it holds.
+    default void onHistoryPage(HistoryPage page) {
+        for (ChatMessage message : page.getMessages()) {
+            onChatMessage(message);
+        }
+    }
+
+    default void onRoomList(RoomList list) {
+    }
+
+    default void onSearchResult(SearchResult result) {
+    }
+
+    default void onDirectMessage(DirectMessage message) {
+    }
+
+    // A snapshot of everyone online once the session opens, then deltas of who changed.
+    default void onRoster(Roster roster) {
+    }
+
+    // Notices such as errors about a request; they also count against demand.
+    default void onSystemMessage(SystemMessage message) {
+    }
+
+    // The session failed; nothing is delivered after this.
+    default void onError(Throwable error) {
+    }
+
+    // The session was closed, by either side.
+    default void onComplete() {
+    }
+}
@@ -1,7 +1,51 @@
 package zebrachat.client;
 
+import java.util.Map;
+
 import zebrachat.protocol.ChatMessage;
+import zebrachat.protocol.DirectMessage;
+import zebrachat.protocol.HistoryPage;
+import zebrachat.protocol.RoomList;
+import zebrachat.protocol.Roster;
+import zebrachat.protocol.SearchResult;
+import zebrachat.protocol.UserStatus;
 
 public interface NewMessageCallback {
     void processChatMessage(ChatMessage message);
+
+    default void processHistoryPage(HistoryPage page) {
+        for (ChatMessage message : page.getMessages()) {
+            processChatMessage(message);
+        }
+    }
+
+    default void processRoomList(RoomList list) {
+        for (Map.Entry<String, Integer> room : list.getRooms().entrySet()) {
+            System.out.println("#" + room.getKey() + " (" + room.getValue() + ")");
+        }
+    }
+
+    default void processDirectMessage(DirectMessage message) {
+        System.out.println("(" + message.getSender() + " to you): " + message.getText());
+    }
+
+    default void processSearchResult(SearchResult result) {
+        for (ChatMessage message : result.getMessages()) {
+            System.out.println("[" + message.getReceiptTime() + "] " + message.getUsername() + ": " + message.getText());
+        }
+        if (result.getMessages().isEmpty()) {
+            System.out.println("No matches in #" + result.getRoom());
+        }
+    }
+
+    // Called with every snapshot and delta, after the client's roster has been updated.
+    default void processRoster(Roster roster) {
+        for (Map.Entry<String, UserStatus> user : roster.getUsers().entrySet()) {
+            if (user.getValue() == null) {
+                System.out.println(user.getKey() + " has left.");
+            } else {
+                System.out.println(user.getKey() + " [" + user.getValue() + "]");
+            }
+        }
+    }
 }
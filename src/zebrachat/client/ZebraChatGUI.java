@@ -1,7 +1,9 @@
 package zebrachat.client;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
-import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.geometry.Insets;
@@ -16,13 +18,27 @@ import javafx.scene.paint.Color;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import zebrachat.protocol.ChatMessage;
+import zebrachat.protocol.DirectMessage;
+import zebrachat.protocol.Roster;
+import zebrachat.protocol.UserStatus;
 
 import java.io.IOException;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class ZebraChatGUI extends Application {
+    // Only the most recent lines are kept; older ones drop off the top of the chat pane.
+    private static final int MAX_LINES = 5000;
+
     private ZebraClient client;
-    private TextArea chatText;
+    // Lines from the listener thread wait here until the next frame adds them all at once.
+    private final Queue<String> pendingLines = new ConcurrentLinkedQueue<>();
+    private final ObservableList<String> chatLines = FXCollections.observableArrayList();
+    private ListView<String> chatList;
     private TextField inputText;
     private DateTimeFormatter timeFormatter;
     private Button connectButton;
@@ -38,11 +54,32 @@ public class ZebraChatGUI extends Application {
         connectDialog.showAndWait();
         connectButton.setOnAction((ActionEvent e) -> connectDialog.showAndWait());
         inputText.setOnAction((ActionEvent e) -> sendMessage());
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                showPendingLines();
+            }
+        }.start();
 
         Task task = new Task<Void>() {
             @Override
             protected Void call() throws Exception {
-                client.listenForMessages((ChatMessage msg) -> displayMessage(msg));
+                client.listenForMessages(new NewMessageCallback() {
+                    @Override
+                    public void processChatMessage(ChatMessage message) {
+                        displayMessage(message);
+                    }
+
+                    @Override
+                    public void processDirectMessage(DirectMessage message) {
+                        displayDirectMessage(message);
+                    }
+
+                    @Override
+                    public void processRoster(Roster roster) {
+                        displayRoster(roster);
+                    }
+                });
                 return null;
             }
         };
@@ -62,13 +99,25 @@ public class ZebraChatGUI extends Application {
         inputText = new TextField();
         grid.add(inputText, 0, 2);
 
-        chatText = new TextArea();
-        chatText.setEditable(false);
-        chatText.setFocusTraversable(false);
-        chatText.setPrefSize(400, 300);
-        chatText.setWrapText(true);
-        chatText.setOnKeyPressed((KeyEvent e) -> inputText.requestFocus());
-        grid.add(chatText, 0, 1);
+        // A ListView only lays out the cells that are visible, however many lines it holds.
+        chatList = new ListView<>(chatLines);
+        chatList.setFocusTraversable(false);
+        chatList.setPrefSize(400, 300);
+        chatList.setCellFactory(list -> new ListCell<String>() {
+            {
+                setWrapText(true);
+                prefWidthProperty().bind(list.widthProperty().subtract(20));
+                setMaxWidth(Control.USE_PREF_SIZE);
+            }
+
+            @Override
+            protected void updateItem(String line, boolean empty) {
+                super.updateItem(line, empty);
+                setText(empty ? null : line);
+            }
+        });
+        chatList.setOnKeyPressed((KeyEvent e) -> inputText.requestFocus());
+        grid.add(chatList, 0, 1);
 
         return new Scene(grid);
     }
@@ -83,24 +132,63 @@ public class ZebraChatGUI extends Application {
         return grid;
     }
 
+    // Called on the listener thread; the line is formatted here and shown on the next frame.
     private void displayMessage(ChatMessage msg) {
-        Platform.runLater(() -> {
-            String time = msg.getReceiptTime().format(timeFormatter);
-            if (msg.getUsername() != null) {
-                chatText.appendText("[" + time + "] " + msg.getUsername() + ": " + msg.getText() + "\n");
+        String time = msg.getReceiptTime().format(timeFormatter);
+        if (msg.getUsername() != null) {
+            pendingLines.add("[" + time + "] " + msg.getUsername() + ": " + msg.getText());
+        } else {
+            pendingLines.add("[" + time + "] " + msg.getText());
+        }
+    }
+
+    private void displayDirectMessage(DirectMessage msg) {
+        String time = msg.getReceiptTime().format(timeFormatter);
+        pendingLines.add("[" + time + "] (" + msg.getSender() + " to you): " + msg.getText());
+    }
+
+    // Called on the listener thread. Only deltas are shown; the snapshot after logging in is not news.
+    private void displayRoster(Roster roster) {
+        if (roster.isSnapshot()) {
+            return;
+        }
+        for (Map.Entry<String, UserStatus> user : roster.getUsers().entrySet()) {
+            if (user.getValue() == null) {
+                pendingLines.add(user.getKey() + " has left.");
             } else {
-                chatText.appendText("[" + time + "] " + msg.getText() + "\n");
+                pendingLines.add(user.getKey() + " [" + user.getValue() + "]");
             }
-            chatText.setScrollTop(Double.MAX_VALUE);
-        });
+        }
+    }
+
+    // Runs once per frame on the FX thread, so a burst of messages costs one list update and one
+    // layout instead of one per message.
+    private void showPendingLines() {
+        if (pendingLines.isEmpty()) {
+            return;
+        }
+        List<String> batch = new ArrayList<>();
+        String line;
+        while ((line = pendingLines.poll()) != null) {
+            batch.add(line);
+        }
+        if (batch.size() > MAX_LINES) {
+            batch = batch.subList(batch.size() - MAX_LINES, batch.size());
+        }
+        int overflow = chatLines.size() + batch.size() - MAX_LINES;
+        if (overflow > 0) {
+            chatLines.remove(0, overflow);
+        }
+        chatLines.addAll(batch);
+        chatList.scrollTo(chatLines.size() - 1);
     }
 
     private void connectToServer(String hostName, String username, String password) throws Exception {
         client = new ZebraClient(hostName, username, password);
         if (!client.requestLogin()) {
-            chatText.appendText("Wrong login\n");
+            pendingLines.add("Wrong login");
         } else if (!client.receivePermission()) {
-            chatText.appendText("Chat is full\n");
+            pendingLines.add("Chat is full");
         }
     }
 
@@ -109,7 +197,7 @@ public class ZebraChatGUI extends Application {
             if (inputText.getText().isEmpty()) return;
             client.sendChatMessage(inputText.getText().trim());
         } catch (IOException ex) {
-            chatText.appendText("Connection error!\n");
+            pendingLines.add("Connection error!");
         }
         inputText.clear();
     }
@@ -177,11 +265,12 @@ public class ZebraChatGUI extends Application {
                 password = pwtext.getText().trim();
                 dialog.hide();
 
+                chatLines.clear();
+                pendingLines.clear();
                 try {
                     connectToServer(hostName, username, password);
-                    chatText.clear();
                 } catch (Exception e) {
-                    chatText.appendText("Could not connect to chat. Try again.\n");
+                    pendingLines.add("Could not connect to chat. Try again.");
                 }
             }
         });
@@ -1,36 +1,56 @@
 package zebrachat.client;
 
-import zebrachat.protocol.ChatMessage;
-import zebrachat.protocol.LoginRequest;
-import zebrachat.protocol.SystemMessage;
-import zebrachat.protocol.UserStatus;
+import zebrachat.protocol.*;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ZebraClient implements Closeable {
     private static int SERVER_PORT = 1234;
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private DataOutputStream out;
+    private DataInputStream in;
     private BufferedReader stdIn;
     private static final Logger log = Logger.getLogger("zebrachat.client");
 
     private String username;
     private String password;
-    private UserStatus userStatus = UserStatus.NOTHING;
+    private volatile UserStatus userStatus = UserStatus.NOTHING;
+    private volatile boolean loggedIn;
+    private final Map<String, UserStatus> roster = new ConcurrentHashMap<>();
+    private volatile long lastSeenId;
+    private volatile String currentRoom = Protocol.DEFAULT_ROOM;
 
     public ZebraClient(String hostName, String username, String password) throws Exception{
+        this(hostName, username, password, 0);
+    }
+
+    // Passing the lastSeenId of a previous session resumes it: the server only sends what was missed.
+    public ZebraClient(String hostName, String username, String password, long lastSeenId) throws Exception{
+        this(hostName, SERVER_PORT, username, password, lastSeenId);
+    }
+
+    // Any node of a cluster can be connected to; lastSeenId works across nodes.
+    public ZebraClient(String hostName, int port, String username, String password, long lastSeenId)
+            throws Exception{
         this.username = username;
         this.password = password;
+        this.lastSeenId = lastSeenId;
 
         try {
-            socket = new Socket(hostName, SERVER_PORT);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            socket = new Socket(hostName, port);
+            // Every message is flushed as a whole, so Nagle's algorithm would only delay it.
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(Protocol.preamble());
             stdIn = new BufferedReader(new InputStreamReader(System.in));
 
         } catch (Exception e) {
@@ -51,10 +71,13 @@ public class ZebraClient implements Closeable {
                 System.exit(0);
             }
             Thread msgThread = listenForMessagesThread((ChatMessage msg) -> {
+                String room = msg.getRoom() == null || msg.getRoom().equals(Protocol.DEFAULT_ROOM)
+                        ? "" : "#" + msg.getRoom() + " ";
                 if (msg.getUsername() != null) {
-                    System.out.println(msg.getUsername() + " [" + msg.getStatus() + "]: " + msg.getText());
+                    UserStatus status = roster.getOrDefault(msg.getUsername(), UserStatus.NOTHING);
+                    System.out.println(room + msg.getUsername() + " [" + status + "]: " + msg.getText());
                 } else {
-                    System.out.println(msg.getText());
+                    System.out.println(room + msg.getText());
                 }
             });
             Thread inputThread = processUserInput();
@@ -71,33 +94,60 @@ public class ZebraClient implements Closeable {
         }
     }
 
-    public void setUserStatus(UserStatus userStatus) {
+    public long getLastSeenId() {
+        return lastSeenId;
+    }
+
+    // Sent to the server right away once logged in, otherwise as soon as permission is granted.
+    public void setUserStatus(UserStatus userStatus) throws IOException {
         this.userStatus = userStatus;
+        if (loggedIn) {
+            write(new StatusUpdate(userStatus));
+        }
+    }
+
+    // Everyone online and their status, as of the last roster received by listenForMessages.
+    public Map<String, UserStatus> getRoster() {
+        return Collections.unmodifiableMap(roster);
     }
 
     public boolean receivePermission() {
         SystemMessage msg = null;
         try {
-            msg = (SystemMessage) in.readObject();
-        } catch (IOException | ClassNotFoundException e) {
+            msg = (SystemMessage) MessageDecoder.read(in);
+        } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
 
-        System.out.println(msg.getMessage());
-        return msg.getStatus() == SystemMessage.Status.OK;
+        if (msg.getStatus() != SystemMessage.Status.OK) {
+            System.out.println(msg.getMessage());
+            return false;
+        }
+        loggedIn = true;
+        if (userStatus != UserStatus.NOTHING) {
+            try {
+                write(new StatusUpdate(userStatus));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        return true;
     }
 
     public boolean requestLogin() {
         SystemMessage response = null;
         try {
-            LoginRequest login = new LoginRequest(username, password);
-            out.writeObject(login);
-            response = (SystemMessage) in.readObject();
+            LoginRequest login = new LoginRequest(username, password, lastSeenId);
+            MessageEncoder.write(out, login);
+            response = (SystemMessage) MessageDecoder.read(in);
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            return false;
+        }
+        if (response.getStatus() != SystemMessage.Status.OK) {
+            System.out.println(response.getMessage());
         }
         return response.getStatus() == SystemMessage.Status.OK;
     }
@@ -119,23 +169,131 @@ public class ZebraClient implements Closeable {
     }
 
     public void listenForMessages(NewMessageCallback callback) throws IOException {
-        ChatMessage fromServer;
+        Object fromServer;
         while (true) {
-            try {
-                fromServer = (ChatMessage) in.readObject();
-            } catch (ClassNotFoundException e) {
-                System.err.println("Error deseriazlizing message");
-                e.printStackTrace();
-                continue;
-            }
+            fromServer = MessageDecoder.read(in);
 
-            callback.processChatMessage(fromServer);
+            if (fromServer instanceof ChatMessage) {
+                ChatMessage message = (ChatMessage) fromServer;
+                lastSeenId = Math.max(lastSeenId, message.getId());
+                callback.processChatMessage(message);
+            } else if (fromServer instanceof HistoryPage) {
+                HistoryPage page = (HistoryPage) fromServer;
+                if (!page.getMessages().isEmpty()) {
+                    lastSeenId = Math.max(lastSeenId, page.getMessages().get(page.getMessages().size() - 1).getId());
+                }
+                callback.processHistoryPage(page);
+            } else if (fromServer instanceof SearchResult) {
+                callback.processSearchResult((SearchResult) fromServer);
+            } else if (fromServer instanceof RoomList) {
+                callback.processRoomList((RoomList) fromServer);
+            } else if (fromServer instanceof DirectMessage) {
+                callback.processDirectMessage((DirectMessage) fromServer);
+            } else if (fromServer instanceof Roster) {
+                Roster update = (Roster) fromServer;
+                update.applyTo(roster);
+                callback.processRoster(update);
+            } else if (fromServer instanceof SystemMessage) {
+                System.out.println(((SystemMessage) fromServer).getMessage());
+            }
         }
     }
 
+    // Asks for the page of messages preceding beforeId; the answer arrives as a HistoryPage
+    // through the callback passed to listenForMessages.
+    public void requestHistory(long beforeId, int pageSize) throws IOException {
+        requestHistory(null, beforeId, pageSize);
+    }
+
+    public void requestHistory(String room, long beforeId, int pageSize) throws IOException {
+        write(new HistoryRequest(room, beforeId, pageSize));
+    }
+
+    // The answer arrives as a SearchResult through the callback passed to listenForMessages.
+    public void search(SearchRequest request) throws IOException {
+        write(request);
+    }
+
+    public void search(String room, String text, String username, int limit) throws IOException {
+        search(new SearchRequest(room, text, username, limit));
+    }
+
+    // The server answers with the newest page of the room, or with what was missed since
+    // lastSeenId if that is non-zero and still stored.
+    public void joinRoom(String room, long lastSeenId) throws IOException {
+        write(new RoomRequest(RoomRequest.Action.JOIN, room, lastSeenId));
+    }
+
+    public void joinRoom(String room) throws IOException {
+        joinRoom(room, 0);
+    }
+
+    public void leaveRoom(String room) throws IOException {
+        write(RoomRequest.leave(room));
+    }
+
+    // The answer arrives as a RoomList through the callback passed to listenForMessages.
+    public void listRooms() throws IOException {
+        write(RoomRequest.list());
+    }
+
     public void sendChatMessage(String text) throws IOException {
-        ChatMessage message = new ChatMessage(username, text);
-        out.writeObject(message);
+        sendChatMessage(null, text);
+    }
+
+    public void sendChatMessage(String room, String text) throws IOException {
+        write(new ChatMessage(room, username, text));
+    }
+
+    // Held for the recipient if they are not logged in.
+    public void sendDirectMessage(String recipient, String text) throws IOException {
+        write(new DirectMessage(recipient, text));
+    }
+
+    private void write(Object message) throws IOException {
+        synchronized (out) {
+            MessageEncoder.write(out, message);
+        }
+    }
+
+    // Lines starting with /join, /leave, /rooms, /status, /msg or /search are commands; anything
+    // else is sent to the room joined last. /search looks in the room joined last for messages
+    // with all the given words, from:<user> limiting it to one sender.
+    private void processInputLine(String line) throws IOException {
+        String[] words = line.trim().split("\\s+", 2);
+        if (words[0].equals("/join") && words.length == 2) {
+            joinRoom(words[1]);
+            currentRoom = words[1];
+        } else if (words[0].equals("/leave") && words.length == 2) {
+            leaveRoom(words[1]);
+            if (words[1].equals(currentRoom)) {
+                currentRoom = Protocol.DEFAULT_ROOM;
+            }
+        } else if (words[0].equals("/rooms")) {
+            listRooms();
+        } else if (words[0].equals("/msg") && words.length == 2 && words[1].contains(" ")) {
+            String[] message = words[1].split("\\s+", 2);
+            sendDirectMessage(message[0], message[1]);
+        } else if (words[0].equals("/search") && words.length == 2) {
+            StringBuilder text = new StringBuilder();
+            String sender = null;
+            for (String word : words[1].split("\\s+")) {
+                if (word.startsWith("from:") && word.length() > 5) {
+                    sender = word.substring(5);
+                } else {
+                    text.append(word).append(' ');
+                }
+            }
+            search(currentRoom, text.toString().trim(), sender, 0);
+        } else if (words[0].equals("/status") && words.length == 2) {
+            try {
+                setUserStatus(UserStatus.valueOf(words[1].toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Statuses: " + Arrays.toString(UserStatus.values()));
+            }
+        } else {
+            sendChatMessage(currentRoom, line);
+        }
     }
 
     private Thread processUserInput() {
@@ -143,8 +301,7 @@ public class ZebraClient implements Closeable {
             try {
                 String messageText;
                 while ((messageText = stdIn.readLine()) != null) {
-                    ChatMessage message = new ChatMessage(username, messageText);
-                    out.writeObject(message);
+                    processInputLine(messageText);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -1,20 +1,42 @@
 package zebrachat.protocol;
 
-import java.io.Serializable;
-import java.net.InetAddress;
 import java.time.LocalDateTime;
 import java.util.Objects;
 
-public class ChatMessage implements Serializable {
+public class ChatMessage {
+    private long id;
     private LocalDateTime receiptTime;
+    private String room;
     private String username;
     private String text;
 
     public ChatMessage(String username, String text) {
+        this(null, username, text);
+    }
+
+    // A null room stands for Protocol.DEFAULT_ROOM.
+    public ChatMessage(String room, String username, String text) {
+        this.room = room;
         this.username = username;
         this.text = text;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -27,10 +49,6 @@ public class ChatMessage implements Serializable {
         this.receiptTime = receiptTime;
     }
 
-    public UserStatus getStatus() {
-        return UserStatus.NOTHING;
-    }
-
     public String getText() {
         return text;
     }
@@ -40,20 +58,24 @@ public class ChatMessage implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ChatMessage that = (ChatMessage) o;
-        return Objects.equals(receiptTime, that.receiptTime) &&
+        return id == that.id &&
+                Objects.equals(receiptTime, that.receiptTime) &&
+                Objects.equals(room, that.room) &&
                 Objects.equals(username, that.username) &&
                 Objects.equals(text, that.text);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(receiptTime, username, text);
+        return Objects.hash(id, receiptTime, room, username, text);
     }
 
     @Override
     public String toString() {
         return "ChatMessage{" +
-                "receiptTime=" + receiptTime +
+                "id=" + id +
+                ", receiptTime=" + receiptTime +
+                ", room='" + room + '\'' +
                 ", username='" + username + '\'' +
                 ", text='" + text + '\'' +
                 '}';
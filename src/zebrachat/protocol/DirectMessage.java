@@ -0,0 +1,52 @@
+package zebrachat.protocol;
+
+import java.time.LocalDateTime;
+
+// A private message to one user. Clients leave the sender out; the server fills it in along
+// with the receipt time. Direct messages have no id and are not part of any room's history.
+public class DirectMessage {
+    private String sender;
+    private String recipient;
+    private String text;
+    private LocalDateTime receiptTime;
+
+    public DirectMessage(String recipient, String text) {
+        this(null, recipient, text);
+    }
+
+    public DirectMessage(String sender, String recipient, String text) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.text = text;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public LocalDateTime getReceiptTime() {
+        return receiptTime;
+    }
+
+    public void setReceiptTime(LocalDateTime receiptTime) {
+        this.receiptTime = receiptTime;
+    }
+
+    @Override
+    public String toString() {
+        return "DirectMessage{" +
+                "sender='" + sender + '\'' +
+                ", recipient='" + recipient + '\'' +
+                ", text='" + text + '\'' +
+                ", receiptTime=" + receiptTime +
+                '}';
+    }
+}
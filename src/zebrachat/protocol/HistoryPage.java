@@ -0,0 +1,32 @@
+package zebrachat.protocol;
+
+import java.util.List;
+
+public class HistoryPage {
+    private String room;
+    private List<ChatMessage> messages;
+    private boolean hasMore;
+
+    public HistoryPage(String room, List<ChatMessage> messages, boolean hasMore) {
+        this.room = room;
+        this.messages = messages;
+        this.hasMore = hasMore;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    // Oldest first.
+    public List<ChatMessage> getMessages() {
+        return messages;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    public long getOldestId() {
+        return messages.isEmpty() ? 0 : messages.get(0).getId();
+    }
+}
@@ -0,0 +1,49 @@
+package zebrachat.protocol;
+
+import java.time.LocalDateTime;
+
+public class HistoryRequest {
+    private String room;
+    private long beforeId;
+    private LocalDateTime from;
+    private LocalDateTime to;
+    private int pageSize;
+
+    public HistoryRequest(long beforeId, int pageSize) {
+        this(null, beforeId, pageSize);
+    }
+
+    public HistoryRequest(String room, long beforeId, int pageSize) {
+        this(room, beforeId, null, null, pageSize);
+    }
+
+    // beforeId == 0 asks for the newest page; from/to may be null for an open range.
+    // A null room stands for Protocol.DEFAULT_ROOM.
+    public HistoryRequest(String room, long beforeId, LocalDateTime from, LocalDateTime to, int pageSize) {
+        this.room = room;
+        this.beforeId = beforeId;
+        this.from = from;
+        this.to = to;
+        this.pageSize = pageSize;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public long getBeforeId() {
+        return beforeId;
+    }
+
+    public LocalDateTime getFrom() {
+        return from;
+    }
+
+    public LocalDateTime getTo() {
+        return to;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+}
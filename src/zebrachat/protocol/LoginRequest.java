@@ -1,14 +1,19 @@
 package zebrachat.protocol;
 
-import java.io.Serializable;
-
-public class LoginRequest implements Serializable {
+public class LoginRequest {
     private String username;
     private String password;
+    private long lastSeenId;
 
     public LoginRequest(String username, String password) {
+        this(username, password, 0);
+    }
+
+    // A non-zero lastSeenId asks the server to resume the session with only the messages after it.
+    public LoginRequest(String username, String password, long lastSeenId) {
         this.username = username;
         this.password = password;
+        this.lastSeenId = lastSeenId;
     }
 
     public String getPassword() {
@@ -18,4 +23,8 @@ public class LoginRequest implements Serializable {
     public String getUsername() {
         return username;
     }
+
+    public long getLastSeenId() {
+        return lastSeenId;
+    }
 }
@@ -0,0 +1,211 @@
+package zebrachat.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class MessageDecoder {
+    private static final int NO_FRAME = -1;
+
+    private MessageDecoder() {
+    }
+
+    // Returns the body (type tag and fields) of the next complete frame in the buffer and advances
+    // past it, or null without consuming anything if the frame has not been fully received yet.
+    public static ByteBuffer nextFrame(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int length = readFrameLength(buffer);
+        if (length == NO_FRAME || buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        ByteBuffer body = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return body;
+    }
+
+    public static Object decode(ByteBuffer body) throws ProtocolException {
+        try {
+            MessageType type = MessageType.fromTag(body.get());
+            switch (type) {
+                case CHAT_MESSAGE: {
+                    ChatMessage message = new ChatMessage(getString(body), getString(body));
+                    message.setReceiptTime(getTime(body));
+                    message.setId(getVarlong(body));
+                    // Frames stored before rooms existed end after the id.
+                    message.setRoom(body.hasRemaining() ? getString(body) : null);
+                    return message;
+                }
+                case SYSTEM_MESSAGE: {
+                    SystemMessage.Status status = SystemMessage.Status.values()[body.get()];
+                    return new SystemMessage(status, getString(body));
+                }
+                case LOGIN_REQUEST:
+                    return new LoginRequest(getString(body), getString(body), getVarlong(body));
+                case HISTORY_REQUEST:
+                    return new HistoryRequest(getString(body), getVarlong(body), getTime(body), getTime(body),
+                            (int) getVarlong(body));
+                case HISTORY_PAGE: {
+                    String room = getString(body);
+                    boolean hasMore = body.get() != 0;
+                    return new HistoryPage(room, getMessages(body), hasMore);
+                }
+                case SEARCH_REQUEST:
+                    return new SearchRequest(getString(body), getString(body), getString(body), getTime(body),
+                            getTime(body), getVarlong(body), (int) getVarlong(body));
+                case SEARCH_RESULT: {
+                    String room = getString(body);
+                    boolean hasMore = body.get() != 0;
+                    return new SearchResult(room, getMessages(body), hasMore);
+                }
+                case ROOM_REQUEST: {
+                    RoomRequest.Action action = RoomRequest.Action.values()[body.get()];
+                    return new RoomRequest(action, getString(body), getVarlong(body));
+                }
+                case ROOM_LIST: {
+                    int count = (int) getVarlong(body);
+                    Map<String, Integer> rooms = new LinkedHashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        rooms.put(getString(body), (int) getVarlong(body));
+                    }
+                    return new RoomList(rooms);
+                }
+                case NODE_HELLO:
+                    return new NodeHello(getString(body), getString(body), getVarlong(body));
+                case USERNAME_CLAIM:
+                    return new UsernameClaim(getVarlong(body), getString(body),
+                            UsernameClaim.Action.values()[body.get()]);
+                case DIRECT_MESSAGE: {
+                    DirectMessage message = new DirectMessage(getString(body), getString(body), getString(body));
+                    message.setReceiptTime(getTime(body));
+                    return message;
+                }
+                case STATUS_UPDATE:
+                    return new StatusUpdate(UserStatus.values()[body.get()]);
+                case ROSTER: {
+                    boolean snapshot = body.get() != 0;
+                    int count = (int) getVarlong(body);
+                    Map<String, UserStatus> users = new HashMap<>(Math.min(count, body.remaining()) * 2);
+                    for (int i = 0; i < count; i++) {
+                        users.put(getString(body), getStatus(body));
+                    }
+                    return new Roster(snapshot, users);
+                }
+                default:
+                    throw new ProtocolException("Unsupported message type: " + type);
+            }
+        } catch (RuntimeException e) {
+            throw new ProtocolException("Malformed message: " + e);
+        }
+    }
+
+    public static Object read(DataInputStream in) throws IOException {
+        return decode(nextFrame(readFrame(in)));
+    }
+
+    // Reads one complete frame, length prefix included, e.g. to pass it on without re-encoding it.
+    public static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        byte[] header = new byte[5];
+        long length = 0;
+        int headerLength = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            header[headerLength] = b;
+            length |= (long) (b & 0x7F) << (7 * headerLength++);
+        } while ((b & 0x80) != 0 && headerLength < header.length);
+        if ((b & 0x80) != 0 || length <= 0 || length > Protocol.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        byte[] frame = new byte[headerLength + (int) length];
+        System.arraycopy(header, 0, frame, 0, headerLength);
+        in.readFully(frame, headerLength, (int) length);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static int readFrameLength(ByteBuffer buffer) throws ProtocolException {
+        long length = 0;
+        int shift = 0;
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (length <= 0 || length > Protocol.MAX_FRAME_LENGTH) {
+                    throw new ProtocolException("Invalid frame length: " + length);
+                }
+                return (int) length;
+            }
+            shift += 7;
+            if (shift >= 35) {
+                throw new ProtocolException("Frame length varint too long");
+            }
+        }
+        return NO_FRAME;
+    }
+
+    static long getVarlong(ByteBuffer body) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = body.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    private static String getString(ByteBuffer body) throws ProtocolException {
+        long length = getVarlong(body) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > body.remaining()) {
+            throw new ProtocolException("String length exceeds frame: " + length);
+        }
+        if (!body.hasArray()) {
+            byte[] bytes = new byte[(int) length];
+            body.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(body.array(), body.arrayOffset() + body.position(), (int) length,
+                StandardCharsets.UTF_8);
+        body.position(body.position() + (int) length);
+        return value;
+    }
+
+    // A count followed by embedded chat message frames.
+    private static List<ChatMessage> getMessages(ByteBuffer body) throws ProtocolException {
+        int count = (int) getVarlong(body);
+        List<ChatMessage> messages = new ArrayList<>(Math.min(count, body.remaining()));
+        for (int i = 0; i < count; i++) {
+            ByteBuffer messageBody = nextFrame(body);
+            if (messageBody == null) {
+                throw new ProtocolException("Truncated message list");
+            }
+            messages.add((ChatMessage) decode(messageBody));
+        }
+        return messages;
+    }
+
+    // Statuses are written as ordinal + 1, so that 0 encodes a user who has left.
+    private static UserStatus getStatus(ByteBuffer body) {
+        int status = body.get();
+        return status == 0 ? null : UserStatus.values()[status - 1];
+    }
+
+    private static LocalDateTime getTime(ByteBuffer body) throws ProtocolException {
+        long millis = getVarlong(body) - 1;
+        return millis < 0 ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+}
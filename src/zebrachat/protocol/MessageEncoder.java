@@ -0,0 +1,330 @@
+package zebrachat.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class MessageEncoder {
+
+    private MessageEncoder() {
+    }
+
+    public static ByteBuffer encode(Object message) {
+        if (message instanceof ChatMessage) {
+            return encode((ChatMessage) message);
+        } else if (message instanceof SystemMessage) {
+            return encode((SystemMessage) message);
+        } else if (message instanceof LoginRequest) {
+            return encode((LoginRequest) message);
+        } else if (message instanceof HistoryRequest) {
+            return encode((HistoryRequest) message);
+        } else if (message instanceof HistoryPage) {
+            return encode((HistoryPage) message);
+        } else if (message instanceof RoomRequest) {
+            return encode((RoomRequest) message);
+        } else if (message instanceof RoomList) {
+            return encode((RoomList) message);
+        } else if (message instanceof NodeHello) {
+            return encode((NodeHello) message);
+        } else if (message instanceof UsernameClaim) {
+            return encode((UsernameClaim) message);
+        } else if (message instanceof SearchRequest) {
+            return encode((SearchRequest) message);
+        } else if (message instanceof SearchResult) {
+            return encode((SearchResult) message);
+        } else if (message instanceof DirectMessage) {
+            return encode((DirectMessage) message);
+        } else if (message instanceof StatusUpdate) {
+            return encode((StatusUpdate) message);
+        } else if (message instanceof Roster) {
+            return encode((Roster) message);
+        }
+        throw new IllegalArgumentException("Not a protocol message: " + message);
+    }
+
+    public static ByteBuffer encode(ChatMessage message) {
+        byte[] username = utf8(message.getUsername());
+        byte[] text = utf8(message.getText());
+        long time = epochMillis(message.getReceiptTime());
+        byte[] room = utf8(message.getRoom());
+        ByteBuffer frame = allocate(MessageType.CHAT_MESSAGE, sizeOf(username) + sizeOf(text)
+                + varlongSize(time) + varlongSize(message.getId()) + sizeOf(room));
+        putBytes(frame, username);
+        putBytes(frame, text);
+        putVarlong(frame, time);
+        putVarlong(frame, message.getId());
+        putBytes(frame, room);
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(SystemMessage message) {
+        byte[] text = utf8(message.getMessage());
+        ByteBuffer frame = allocate(MessageType.SYSTEM_MESSAGE, 1 + sizeOf(text));
+        frame.put((byte) message.getStatus().ordinal());
+        putBytes(frame, text);
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(LoginRequest request) {
+        byte[] username = utf8(request.getUsername());
+        byte[] password = utf8(request.getPassword());
+        ByteBuffer frame = allocate(MessageType.LOGIN_REQUEST,
+                sizeOf(username) + sizeOf(password) + varlongSize(request.getLastSeenId()));
+        putBytes(frame, username);
+        putBytes(frame, password);
+        putVarlong(frame, request.getLastSeenId());
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(HistoryRequest request) {
+        byte[] room = utf8(request.getRoom());
+        long from = epochMillis(request.getFrom());
+        long to = epochMillis(request.getTo());
+        ByteBuffer frame = allocate(MessageType.HISTORY_REQUEST, sizeOf(room) + varlongSize(request.getBeforeId())
+                + varlongSize(from) + varlongSize(to) + varlongSize(request.getPageSize()));
+        putBytes(frame, room);
+        putVarlong(frame, request.getBeforeId());
+        putVarlong(frame, from);
+        putVarlong(frame, to);
+        putVarlong(frame, request.getPageSize());
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(HistoryPage page) {
+        return encodeHistoryPage(page.getRoom(), encodeAll(page.getMessages()), page.hasMore());
+    }
+
+    public static ByteBuffer encode(SearchResult result) {
+        return encodeSearchResult(result.getRoom(), encodeAll(result.getMessages()), result.hasMore());
+    }
+
+    private static List<ByteBuffer> encodeAll(List<ChatMessage> messages) {
+        List<ByteBuffer> frames = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            frames.add(encode(message));
+        }
+        return frames;
+    }
+
+    // A history page embeds the already encoded chat message frames, oldest first.
+    public static ByteBuffer encodeHistoryPage(String room, List<ByteBuffer> messageFrames, boolean hasMore) {
+        return encodeMessageList(MessageType.HISTORY_PAGE, room, messageFrames, hasMore);
+    }
+
+    // Laid out like a history page.
+    public static ByteBuffer encodeSearchResult(String room, List<ByteBuffer> messageFrames, boolean hasMore) {
+        return encodeMessageList(MessageType.SEARCH_RESULT, room, messageFrames, hasMore);
+    }
+
+    private static ByteBuffer encodeMessageList(MessageType type, String room, List<ByteBuffer> messageFrames,
+            boolean hasMore) {
+        byte[] roomBytes = utf8(room);
+        int length = sizeOf(roomBytes) + 1 + varlongSize(messageFrames.size());
+        for (ByteBuffer messageFrame : messageFrames) {
+            length += messageFrame.remaining();
+        }
+        ByteBuffer frame = allocate(type, length);
+        putBytes(frame, roomBytes);
+        frame.put((byte) (hasMore ? 1 : 0));
+        putVarlong(frame, messageFrames.size());
+        for (ByteBuffer messageFrame : messageFrames) {
+            frame.put(messageFrame.duplicate());
+        }
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(RoomRequest request) {
+        byte[] room = utf8(request.getRoom());
+        ByteBuffer frame = allocate(MessageType.ROOM_REQUEST,
+                1 + sizeOf(room) + varlongSize(request.getLastSeenId()));
+        frame.put((byte) request.getAction().ordinal());
+        putBytes(frame, room);
+        putVarlong(frame, request.getLastSeenId());
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(RoomList list) {
+        List<byte[]> names = new ArrayList<>(list.getRooms().size());
+        int length = varlongSize(list.getRooms().size());
+        for (Map.Entry<String, Integer> room : list.getRooms().entrySet()) {
+            byte[] name = utf8(room.getKey());
+            names.add(name);
+            length += sizeOf(name) + varlongSize(room.getValue());
+        }
+        ByteBuffer frame = allocate(MessageType.ROOM_LIST, length);
+        putVarlong(frame, names.size());
+        int i = 0;
+        for (Integer members : list.getRooms().values()) {
+            putBytes(frame, names.get(i++));
+            putVarlong(frame, members);
+        }
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(NodeHello hello) {
+        byte[] nodeId = utf8(hello.getNodeId());
+        byte[] secret = utf8(hello.getSecret());
+        ByteBuffer frame = allocate(MessageType.NODE_HELLO,
+                sizeOf(nodeId) + sizeOf(secret) + varlongSize(hello.getNextId()));
+        putBytes(frame, nodeId);
+        putBytes(frame, secret);
+        putVarlong(frame, hello.getNextId());
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(UsernameClaim claim) {
+        byte[] username = utf8(claim.getUsername());
+        ByteBuffer frame = allocate(MessageType.USERNAME_CLAIM,
+                varlongSize(claim.getRequestId()) + sizeOf(username) + 1);
+        putVarlong(frame, claim.getRequestId());
+        putBytes(frame, username);
+        frame.put((byte) claim.getAction().ordinal());
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(SearchRequest request) {
+        byte[] room = utf8(request.getRoom());
+        byte[] text = utf8(request.getText());
+        byte[] username = utf8(request.getUsername());
+        long from = epochMillis(request.getFrom());
+        long to = epochMillis(request.getTo());
+        ByteBuffer frame = allocate(MessageType.SEARCH_REQUEST, sizeOf(room) + sizeOf(text) + sizeOf(username)
+                + varlongSize(from) + varlongSize(to) + varlongSize(request.getBeforeId())
+                + varlongSize(request.getLimit()));
+        putBytes(frame, room);
+        putBytes(frame, text);
+        putBytes(frame, username);
+        putVarlong(frame, from);
+        putVarlong(frame, to);
+        putVarlong(frame, request.getBeforeId());
+        putVarlong(frame, request.getLimit());
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(DirectMessage message) {
+        byte[] sender = utf8(message.getSender());
+        byte[] recipient = utf8(message.getRecipient());
+        byte[] text = utf8(message.getText());
+        long time = epochMillis(message.getReceiptTime());
+        ByteBuffer frame = allocate(MessageType.DIRECT_MESSAGE,
+                sizeOf(sender) + sizeOf(recipient) + sizeOf(text) + varlongSize(time));
+        putBytes(frame, sender);
+        putBytes(frame, recipient);
+        putBytes(frame, text);
+        putVarlong(frame, time);
+        return frame.flip();
+    }
+
+    public static ByteBuffer encode(StatusUpdate update) {
+        ByteBuffer frame = allocate(MessageType.STATUS_UPDATE, 1);
+        frame.put((byte) update.getStatus().ordinal());
+        return frame.flip();
+    }
+
+    // A roster too big for one frame is split: the first frame is a snapshot if the roster is,
+    // and the rest are deltas adding to it, which clients apply the same way.
+    public static List<ByteBuffer> encodeFrames(Roster roster) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        Map<String, UserStatus> users = new LinkedHashMap<>();
+        int length = 0;
+        for (Map.Entry<String, UserStatus> user : roster.getUsers().entrySet()) {
+            int size = sizeOf(utf8(user.getKey())) + 1;
+            if (!users.isEmpty() && length + size > Protocol.MAX_FRAME_LENGTH / 2) {
+                frames.add(encode(new Roster(roster.isSnapshot() && frames.isEmpty(), users)));
+                users = new LinkedHashMap<>();
+                length = 0;
+            }
+            users.put(user.getKey(), user.getValue());
+            length += size;
+        }
+        if (!users.isEmpty() || frames.isEmpty()) {
+            frames.add(encode(new Roster(roster.isSnapshot() && frames.isEmpty(), users)));
+        }
+        return frames;
+    }
+
+    public static ByteBuffer encode(Roster roster) {
+        List<byte[]> names = new ArrayList<>(roster.getUsers().size());
+        int length = 1 + varlongSize(roster.getUsers().size());
+        for (String username : roster.getUsers().keySet()) {
+            byte[] name = utf8(username);
+            names.add(name);
+            length += sizeOf(name) + 1;
+        }
+        ByteBuffer frame = allocate(MessageType.ROSTER, length);
+        frame.put((byte) (roster.isSnapshot() ? 1 : 0));
+        putVarlong(frame, names.size());
+        int i = 0;
+        for (UserStatus status : roster.getUsers().values()) {
+            putBytes(frame, names.get(i++));
+            frame.put((byte) (status == null ? 0 : status.ordinal() + 1));
+        }
+        return frame.flip();
+    }
+
+    public static void write(OutputStream out, Object message) throws IOException {
+        ByteBuffer frame = encode(message);
+        out.write(frame.array(), frame.arrayOffset(), frame.limit());
+        out.flush();
+    }
+
+    // Frames over the limit would be refused by every decoder, so they are never produced.
+    private static ByteBuffer allocate(MessageType type, int fieldsLength) {
+        int bodyLength = 1 + fieldsLength;
+        if (bodyLength > Protocol.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException(type + " frame of " + bodyLength + " bytes exceeds "
+                    + Protocol.MAX_FRAME_LENGTH);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(varlongSize(bodyLength) + bodyLength);
+        putVarlong(frame, bodyLength);
+        frame.put(type.getTag());
+        return frame;
+    }
+
+    // Strings are written as varint(length + 1) followed by UTF-8 bytes, so that 0 encodes null.
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return bytes == null ? 1 : varlongSize(bytes.length + 1) + bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer frame, byte[] bytes) {
+        if (bytes == null) {
+            frame.put((byte) 0);
+        } else {
+            putVarlong(frame, bytes.length + 1);
+            frame.put(bytes);
+        }
+    }
+
+    // Timestamps are written as epoch millis + 1, so that 0 encodes null.
+    private static long epochMillis(LocalDateTime time) {
+        return time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + 1;
+    }
+
+    static int varlongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarlong(ByteBuffer frame, long value) {
+        while ((value & ~0x7FL) != 0) {
+            frame.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        frame.put((byte) value);
+    }
+}
@@ -0,0 +1,45 @@
+package zebrachat.protocol;
+
+import java.net.ProtocolException;
+
+public enum MessageType {
+    LOGIN_REQUEST(1),
+    SYSTEM_MESSAGE(2),
+    CHAT_MESSAGE(3),
+    HISTORY_REQUEST(4),
+    HISTORY_PAGE(5),
+    ROOM_REQUEST(6),
+    ROOM_LIST(7),
+    NODE_HELLO(8),
+    USERNAME_CLAIM(9),
+    STATUS_UPDATE(10),
+    ROSTER(11),
+    DIRECT_MESSAGE(12),
+    SEARCH_REQUEST(13),
+    SEARCH_RESULT(14);
+
+    private static final MessageType[] BY_TAG = new MessageType[128];
+    private final byte tag;
+
+    static {
+        for (MessageType type : values()) {
+            BY_TAG[type.tag] = type;
+        }
+    }
+
+    MessageType(int tag) {
+        this.tag = (byte) tag;
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    public static MessageType fromTag(byte tag) throws ProtocolException {
+        MessageType type = tag >= 0 ? BY_TAG[tag] : null;
+        if (type == null) {
+            throw new ProtocolException("Unknown message type: " + tag);
+        }
+        return type;
+    }
+}
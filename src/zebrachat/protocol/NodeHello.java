@@ -0,0 +1,28 @@
+package zebrachat.protocol;
+
+// First message a cluster node sends to the hub: who it is and the id of the first message it
+// has not persisted yet, so the hub can replay what the node missed. The cluster's shared
+// secret proves the node may join at all.
+public class NodeHello {
+    private String nodeId;
+    private String secret;
+    private long nextId;
+
+    public NodeHello(String nodeId, String secret, long nextId) {
+        this.nodeId = nodeId;
+        this.secret = secret;
+        this.nextId = nextId;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getSecret() {
+        return secret;
+    }
+
+    public long getNextId() {
+        return nextId;
+    }
+}
@@ -0,0 +1,33 @@
+package zebrachat.protocol;
+
+import java.nio.ByteBuffer;
+
+public final class Protocol {
+    public static final int VERSION = 1;
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    public static final int PREAMBLE_LENGTH = 4;
+    // Of chat and direct messages, in chars; far enough below MAX_FRAME_LENGTH for anything the
+    // server adds to a message, even when every char takes three bytes of UTF-8.
+    public static final int MAX_TEXT_LENGTH = 16 * 1024;
+    // Every user is in the default room from login until logout.
+    public static final String DEFAULT_ROOM = "main";
+    private static final byte[] MAGIC = {'Z', 'B', 'R'};
+
+    private Protocol() {
+    }
+
+    public static byte[] preamble() {
+        return new byte[] {MAGIC[0], MAGIC[1], MAGIC[2], (byte) VERSION};
+    }
+
+    // Returns the client's protocol version, or -1 if the bytes are not a zebrachat preamble
+    // (e.g. the 0xACED header of a client still speaking Java serialization).
+    public static int readPreamble(ByteBuffer buffer) {
+        for (byte magic : MAGIC) {
+            if (buffer.get() != magic) {
+                return -1;
+            }
+        }
+        return buffer.get() & 0xFF;
+    }
+}
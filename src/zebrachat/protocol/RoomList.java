@@ -0,0 +1,16 @@
+package zebrachat.protocol;
+
+import java.util.Map;
+
+public class RoomList {
+    private Map<String, Integer> rooms;
+
+    // Room names mapped to their current number of members.
+    public RoomList(Map<String, Integer> rooms) {
+        this.rooms = rooms;
+    }
+
+    public Map<String, Integer> getRooms() {
+        return rooms;
+    }
+}
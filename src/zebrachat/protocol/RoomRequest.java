@@ -0,0 +1,56 @@
+package zebrachat.protocol;
+
+public class RoomRequest {
+    public enum Action {
+        JOIN, LEAVE, LIST
+    }
+
+    private Action action;
+    private String room;
+    private long lastSeenId;
+
+    public RoomRequest(Action action, String room) {
+        this(action, room, 0);
+    }
+
+    // As with LoginRequest, a non-zero lastSeenId on a JOIN resumes the room after that message
+    // instead of starting with its newest page.
+    public RoomRequest(Action action, String room, long lastSeenId) {
+        this.action = action;
+        this.room = room;
+        this.lastSeenId = lastSeenId;
+    }
+
+    public static RoomRequest join(String room) {
+        return new RoomRequest(Action.JOIN, room);
+    }
+
+    public static RoomRequest leave(String room) {
+        return new RoomRequest(Action.LEAVE, room);
+    }
+
+    public static RoomRequest list() {
+        return new RoomRequest(Action.LIST, null);
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public long getLastSeenId() {
+        return lastSeenId;
+    }
+
+    @Override
+    public String toString() {
+        return "RoomRequest{" +
+                "action=" + action +
+                ", room='" + room + '\'' +
+                ", lastSeenId=" + lastSeenId +
+                '}';
+    }
+}
@@ -0,0 +1,38 @@
+package zebrachat.protocol;
+
+import java.util.Map;
+
+// Who is online. A client gets a snapshot of everyone once it has logged in, then deltas with
+// the users whose status changed since the previous one; a null status means the user has left.
+// A snapshot too big for one frame is continued in deltas.
+public class Roster {
+    private boolean snapshot;
+    private Map<String, UserStatus> users;
+
+    public Roster(boolean snapshot, Map<String, UserStatus> users) {
+        this.snapshot = snapshot;
+        this.users = users;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public Map<String, UserStatus> getUsers() {
+        return users;
+    }
+
+    // Brings a client's copy of the roster up to date.
+    public void applyTo(Map<String, UserStatus> roster) {
+        if (snapshot) {
+            roster.clear();
+        }
+        for (Map.Entry<String, UserStatus> user : users.entrySet()) {
+            if (user.getValue() == null) {
+                roster.remove(user.getKey());
+            } else {
+                roster.put(user.getKey(), user.getValue());
+            }
+        }
+    }
+}
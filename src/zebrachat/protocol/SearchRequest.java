@@ -0,0 +1,60 @@
+package zebrachat.protocol;
+
+import java.time.LocalDateTime;
+
+// Finds the newest messages of a room containing every word of the text, and sent by username
+// if that is given. Words are matched whole and case-insensitively. Any of text, username, from
+// and to may be null; beforeId pages back like in a HistoryRequest, and a limit of 0 asks for
+// the server's page size. A null room stands for Protocol.DEFAULT_ROOM.
+public class SearchRequest {
+    private String room;
+    private String text;
+    private String username;
+    private LocalDateTime from;
+    private LocalDateTime to;
+    private long beforeId;
+    private int limit;
+
+    public SearchRequest(String room, String text, String username, int limit) {
+        this(room, text, username, null, null, 0, limit);
+    }
+
+    public SearchRequest(String room, String text, String username, LocalDateTime from, LocalDateTime to,
+            long beforeId, int limit) {
+        this.room = room;
+        this.text = text;
+        this.username = username;
+        this.from = from;
+        this.to = to;
+        this.beforeId = beforeId;
+        this.limit = limit;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public LocalDateTime getFrom() {
+        return from;
+    }
+
+    public LocalDateTime getTo() {
+        return to;
+    }
+
+    public long getBeforeId() {
+        return beforeId;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
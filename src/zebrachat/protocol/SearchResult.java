@@ -0,0 +1,34 @@
+package zebrachat.protocol;
+
+import java.util.List;
+
+// The answer to a SearchRequest. If hasMore is set, older matches can be asked for with the
+// oldest id as beforeId.
+public class SearchResult {
+    private String room;
+    private List<ChatMessage> messages;
+    private boolean hasMore;
+
+    public SearchResult(String room, List<ChatMessage> messages, boolean hasMore) {
+        this.room = room;
+        this.messages = messages;
+        this.hasMore = hasMore;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    // Oldest first.
+    public List<ChatMessage> getMessages() {
+        return messages;
+    }
+
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    public long getOldestId() {
+        return messages.isEmpty() ? 0 : messages.get(0).getId();
+    }
+}
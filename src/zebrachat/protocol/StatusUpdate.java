@@ -0,0 +1,14 @@
+package zebrachat.protocol;
+
+// Sent by a client to tell everyone what its user is up to.
+public class StatusUpdate {
+    private UserStatus status;
+
+    public StatusUpdate(UserStatus status) {
+        this.status = status;
+    }
+
+    public UserStatus getStatus() {
+        return status;
+    }
+}
@@ -1,8 +1,6 @@
 package zebrachat.protocol;
 
-import java.io.Serializable;
-
-public class SystemMessage implements Serializable{
+public class SystemMessage {
     private String message;
     private Status status;
 
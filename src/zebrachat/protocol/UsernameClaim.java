@@ -0,0 +1,31 @@
+package zebrachat.protocol;
+
+// Cluster nodes claim a username at the hub before letting a user log in and release it on
+// logout. The hub answers every CLAIM with GRANTED or DENIED under the same request id.
+public class UsernameClaim {
+    public enum Action {
+        CLAIM, RELEASE, GRANTED, DENIED
+    }
+
+    private long requestId;
+    private String username;
+    private Action action;
+
+    public UsernameClaim(long requestId, String username, Action action) {
+        this.requestId = requestId;
+        this.username = username;
+        this.action = action;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+}
@@ -0,0 +1,39 @@
+package zebrachat.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Paces login handshakes so that a reconnect storm after a restart is admitted at a steady
+// rate instead of all at once: at most maxConcurrent handshakes run at a time, and their
+// start times are spaced at least 1/perSecond apart.
+class AdmissionController {
+    private final Semaphore slots;
+    private volatile long intervalNanos;
+    private final AtomicLong nextAdmission = new AtomicLong(System.nanoTime());
+
+    AdmissionController(int maxConcurrent, int perSecond) {
+        this.slots = new Semaphore(maxConcurrent, true);
+        setRate(perSecond);
+    }
+
+    void setRate(int perSecond) {
+        this.intervalNanos = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+    }
+
+    void acquire() throws InterruptedException {
+        if (intervalNanos > 0) {
+            long now = System.nanoTime();
+            long slot = nextAdmission.getAndUpdate(previous -> Math.max(previous, now) + intervalNanos);
+            long wait = Math.max(slot, now) - now;
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        slots.acquire();
+    }
+
+    void release() {
+        slots.release();
+    }
+}
@@ -0,0 +1,82 @@
+package zebrachat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+// Hands records to a background thread that passes them on to the wrapped handler, so logging
+// never waits for the console or a file. When the queue is full records are dropped, not waited
+// for, and the number dropped is reported once the backlog has cleared.
+class AsyncLogHandler extends Handler {
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private final Handler target;
+    private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    AsyncLogHandler(Handler target) {
+        this.target = target;
+        setLevel(target.getLevel());
+        writer = Thread.ofPlatform().daemon().name("zebrachat-log").start(this::write);
+    }
+
+    // Puts every handler of the root logger behind one of these.
+    static void install() {
+        Logger root = Logger.getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            if (!(handler instanceof AsyncLogHandler)) {
+                root.removeHandler(handler);
+                root.addHandler(new AsyncLogHandler(handler));
+            }
+        }
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!closed && isLoggable(record) && !queue.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    private void write() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                LogRecord record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record != null) {
+                    target.publish(record);
+                } else {
+                    target.flush();
+                }
+                long lost = queue.isEmpty() ? dropped.sumThenReset() : 0;
+                if (lost > 0) {
+                    target.publish(new LogRecord(Level.WARNING, "Logging fell behind - dropped " + lost + " records"));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+}
@@ -0,0 +1,112 @@
+package zebrachat.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+public class BlockingConnection extends Connection implements Runnable {
+    private final ThreadFactory threads;
+    private volatile boolean closing;
+
+    BlockingConnection(SocketChannel channel, ZebraServer server, ThreadFactory threads) throws IOException {
+        super(channel, server);
+        this.threads = threads;
+        channel.configureBlocking(true);
+    }
+
+    private Object readMessage() throws IOException {
+        Object message;
+        while ((message = nextMessage()) == null) {
+            if (closing || !channel.isOpen()) {
+                return null;
+            }
+            if (fillReadBuffer() < 0) {
+                throw new EOFException("Connection closed by client");
+            }
+        }
+        return message;
+    }
+
+    @Override
+    public void run() {
+        threads.newThread(this::writeFrames).start();
+        try {
+            Object message;
+            while ((message = readMessage()) != null) {
+                processMessage(message);
+            }
+
+        } catch (IOException e) {
+            if (!closing) {
+                log.log(Level.SEVERE, "IOException: ", e);
+            }
+
+        } finally {
+            server.processUserLeft(this);
+            if (!closing) {
+                close();
+            }
+        }
+    }
+
+    private void writeFrames() {
+        ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+        try {
+            int count;
+            while ((count = outbound.takeBatch(batch, FLUSH_BYTES, FLUSH_WINDOW_NANOS)) > 0) {
+                long start = System.nanoTime();
+                long written = 0;
+                while (batch[count - 1].hasRemaining()) {
+                    written += channel.write(batch, 0, count);
+                }
+                ZebraServer.metrics.writeLatency.record(Metrics.micros(start));
+                ZebraServer.metrics.framesWritten.add(count);
+                ZebraServer.metrics.bytesWritten.add(written);
+                Arrays.fill(batch, 0, count, null);
+            }
+        } catch (IOException e) {
+            if (!closing) {
+                log.log(Level.WARNING, "Error while writing to " + userAddress, e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    void frameQueued() {
+    }
+
+    @Override
+    void evict() {
+        close();
+    }
+
+    @Override
+    void closeAfterFlush() {
+        closing = true;
+        outbound.finish();
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        outbound.finish();
+        outbound.clear();
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            log.fine(() -> "Closing connection to " + userAddress);
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING,"IOException while closing socket: ", e);
+        }
+    }
+}
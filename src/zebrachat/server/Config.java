@@ -1,15 +1,21 @@
 package zebrachat.server;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.Text;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.File;
-import java.util.HashMap;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,64 +23,307 @@ public class Config {
     private static final String CONFIG_FILENAME = "configuration.xml";
     private static Logger log = Logger.getLogger("zebrachat.server");
     private static int PORT;
-    private static int RETAINED_MESSAGES_NUMBER;
-    private static int MAXIMUM_CONNECTIONS;
-    static Map<String, String> users = new HashMap<>();
+    private static ServerMode MODE = ServerMode.THREAD;
+    private static int IO_THREADS = Runtime.getRuntime().availableProcessors();
+    private static int MAXIMUM_CONCURRENT_HANDSHAKES = 64;
+    private static String HISTORY_DIRECTORY;
+    private static int HISTORY_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static long HISTORY_FSYNC_INTERVAL = 1000;
+    private static int BROADCAST_THREADS = Runtime.getRuntime().availableProcessors();
+    private static int MAXIMUM_ROOMS = 1000;
+    private static int MAXIMUM_ROOMS_PER_USER = 16;
+    private static long FLUSH_WINDOW_MICROS = 200;
+    private static int FLUSH_BYTES = 64 * 1024;
+    private static String NODE_ID;
+    private static int CLUSTER_PORT;
+    private static String CLUSTER_ADDRESS = "127.0.0.1";
+    private static String CLUSTER_SECRET;
+    private static String CLUSTER_HUB;
+    private static String CREDENTIALS_FILE = "users.txt";
+    private static int CREDENTIAL_CACHE_SIZE = 10000;
+    private static int METRICS_PORT;
+    private static int TRACE_BUFFER_SIZE = 4096;
+    private static int MESSAGES_PER_SECOND_PER_USER = 20;
+    private static int MESSAGE_BURST_PER_USER = 40;
+    private static int MESSAGES_PER_SECOND_PER_ADDRESS = 200;
+    private static int MESSAGE_BURST_PER_ADDRESS = 400;
+    private static int CONNECTIONS_PER_SECOND = 200;
+    private static int CONNECTION_BURST = 1000;
+    private static long PRESENCE_INTERVAL_MILLIS = 250;
+    private static int MAILBOX_SIZE = 100;
+    private static long MAILBOX_BYTES = 64 * 1024 * 1024;
+    private static int HELD_MESSAGES_PER_SENDER = 500;
+    private static long MAILBOX_HOURS = 168;
+    private static Map<String, String> startupValues;
+    private static volatile ServerLimits limits;
 
     public static int getPort() {
         return PORT;
     }
 
     public static int getRetainedMessagesNumber() {
-        return RETAINED_MESSAGES_NUMBER;
+        return limits.retainedMessagesNumber;
     }
 
     public static int getMaximumConnections() {
-        return MAXIMUM_CONNECTIONS;
+        return limits.maximumConnections;
     }
 
-    private static void assignServerValue(String xmlTagName, String value) {
-        switch(xmlTagName) {
-            case "port": PORT = Integer.valueOf(value); break;
-            case "maximumConnections": MAXIMUM_CONNECTIONS = Integer.valueOf(value); break;
-            case "retainedMessagesNumber": RETAINED_MESSAGES_NUMBER = Integer.valueOf(value); break;
+    public static ServerMode getMode() {
+        return MODE;
+    }
+
+    public static int getIoThreads() {
+        return IO_THREADS;
+    }
+
+    public static int getOutboundQueueSize() {
+        return limits.outboundQueueSize;
+    }
+
+    public static SlowConsumerPolicy getSlowConsumerPolicy() {
+        return limits.slowConsumerPolicy;
+    }
+
+    public static int getHistoryPageSize() {
+        return limits.historyPageSize;
+    }
+
+    public static int getMaximumConcurrentHandshakes() {
+        return MAXIMUM_CONCURRENT_HANDSHAKES;
+    }
+
+    public static int getHandshakesPerSecond() {
+        return limits.handshakesPerSecond;
+    }
+
+    public static String getHistoryDirectory() {
+        return HISTORY_DIRECTORY;
+    }
+
+    public static int getHistorySegmentSize() {
+        return HISTORY_SEGMENT_SIZE;
+    }
+
+    public static long getHistoryFsyncInterval() {
+        return HISTORY_FSYNC_INTERVAL;
+    }
+
+    public static long getHistoryRetentionSize() {
+        return limits.historyRetentionSize;
+    }
+
+    public static long getHistoryRetentionHours() {
+        return limits.historyRetentionHours;
+    }
+
+    public static int getBroadcastThreads() {
+        return BROADCAST_THREADS;
+    }
+
+    public static int getMaximumRooms() {
+        return MAXIMUM_ROOMS;
+    }
+
+    public static int getMaximumRoomsPerUser() {
+        return MAXIMUM_ROOMS_PER_USER;
+    }
+
+    public static long getFlushWindowMicros() {
+        return FLUSH_WINDOW_MICROS;
+    }
+
+    public static int getFlushBytes() {
+        return FLUSH_BYTES;
+    }
+
+    public static String getCredentialsFile() {
+        return CREDENTIALS_FILE;
+    }
+
+    public static int getCredentialCacheSize() {
+        return CREDENTIAL_CACHE_SIZE;
+    }
+
+    // The limits currently in effect; a new instance is published on every reload.
+    static ServerLimits getLimits() {
+        return limits;
+    }
+
+    // The local port serving metrics as plain text, 0 if it is not served.
+    public static int getMetricsPort() {
+        return METRICS_PORT;
+    }
+
+    public static int getTraceBufferSize() {
+        return TRACE_BUFFER_SIZE;
+    }
+
+    // Rates of 0 turn the corresponding limit off.
+    public static int getMessagesPerSecondPerUser() {
+        return MESSAGES_PER_SECOND_PER_USER;
+    }
+
+    public static int getMessageBurstPerUser() {
+        return MESSAGE_BURST_PER_USER;
+    }
+
+    public static int getMessagesPerSecondPerAddress() {
+        return MESSAGES_PER_SECOND_PER_ADDRESS;
+    }
+
+    public static int getMessageBurstPerAddress() {
+        return MESSAGE_BURST_PER_ADDRESS;
+    }
+
+    public static int getConnectionsPerSecond() {
+        return CONNECTIONS_PER_SECOND;
+    }
+
+    public static int getConnectionBurst() {
+        return CONNECTION_BURST;
+    }
+
+    public static long getPresenceIntervalMillis() {
+        return PRESENCE_INTERVAL_MILLIS;
+    }
+
+    // Direct messages held per user while they are not logged in; 0 turns mailboxes off.
+    public static int getMailboxSize() {
+        return MAILBOX_SIZE;
+    }
+
+    // Bytes of direct messages held across all mailboxes.
+    public static long getMailboxBytes() {
+        return MAILBOX_BYTES;
+    }
+
+    // Direct messages one sender may have held, across all mailboxes, at a time.
+    public static int getHeldMessagesPerSender() {
+        return HELD_MESSAGES_PER_SENDER;
+    }
+
+    // How long a direct message is held before it is dropped undelivered.
+    public static long getMailboxHours() {
+        return MAILBOX_HOURS;
+    }
+
+    public static String getNodeId() {
+        return NODE_ID != null ? NODE_ID : "node-" + PORT;
+    }
+
+    // The port this node accepts other cluster nodes on if it is the hub, 0 if it is not.
+    public static int getClusterPort() {
+        return CLUSTER_PORT;
+    }
+
+    // The address the hub accepts other cluster nodes on; loopback unless configured otherwise.
+    public static InetSocketAddress getClusterAddress() {
+        return new InetSocketAddress(CLUSTER_ADDRESS, CLUSTER_PORT);
+    }
+
+    // Shared by every node of a cluster, and required as soon as clusterPort or clusterHub is set.
+    public static String getClusterSecret() {
+        return CLUSTER_SECRET;
+    }
+
+    // The hub to connect to if this node is a cluster member other than the hub, null if it is not.
+    public static InetSocketAddress getClusterHub() {
+        if (CLUSTER_HUB == null) {
+            return null;
         }
+        int colon = CLUSTER_HUB.lastIndexOf(':');
+        return new InetSocketAddress(CLUSTER_HUB.substring(0, colon),
+                Integer.parseInt(CLUSTER_HUB.substring(colon + 1)));
     }
 
-    private static void readServerValues(Element server) {
-        for(Node node = server.getFirstChild(); node != null; node = node.getNextSibling()) {
-            Element el = (Element) node;
-            Text textNode = (Text) el.getFirstChild();
-            String value = textNode.getData().trim();
-            assignServerValue(el.getTagName(), value);
+    private static void assignServerValue(String xmlTagName, String value) {
+        switch(xmlTagName) {
+            case "port": PORT = Integer.valueOf(value); break;
+            case "mode": MODE = ServerMode.valueOf(value.toUpperCase()); break;
+            case "ioThreads": IO_THREADS = Integer.valueOf(value); break;
+            case "maximumConcurrentHandshakes": MAXIMUM_CONCURRENT_HANDSHAKES = Integer.valueOf(value); break;
+            case "historyDirectory": HISTORY_DIRECTORY = value; break;
+            case "historySegmentSize": HISTORY_SEGMENT_SIZE = Integer.valueOf(value); break;
+            case "historyFsyncInterval": HISTORY_FSYNC_INTERVAL = Long.valueOf(value); break;
+            case "broadcastThreads": BROADCAST_THREADS = Integer.valueOf(value); break;
+            case "maximumRooms": MAXIMUM_ROOMS = Integer.valueOf(value); break;
+            case "maximumRoomsPerUser": MAXIMUM_ROOMS_PER_USER = Integer.valueOf(value); break;
+            case "flushWindowMicros": FLUSH_WINDOW_MICROS = Long.valueOf(value); break;
+            case "flushBytes": FLUSH_BYTES = Integer.valueOf(value); break;
+            case "credentialsFile": CREDENTIALS_FILE = value; break;
+            case "credentialCacheSize": CREDENTIAL_CACHE_SIZE = Integer.valueOf(value); break;
+            case "metricsPort": METRICS_PORT = Integer.valueOf(value); break;
+            case "traceBufferSize": TRACE_BUFFER_SIZE = Integer.valueOf(value); break;
+            case "messagesPerSecondPerUser": MESSAGES_PER_SECOND_PER_USER = Integer.valueOf(value); break;
+            case "messageBurstPerUser": MESSAGE_BURST_PER_USER = Integer.valueOf(value); break;
+            case "messagesPerSecondPerAddress": MESSAGES_PER_SECOND_PER_ADDRESS = Integer.valueOf(value); break;
+            case "messageBurstPerAddress": MESSAGE_BURST_PER_ADDRESS = Integer.valueOf(value); break;
+            case "connectionsPerSecond": CONNECTIONS_PER_SECOND = Integer.valueOf(value); break;
+            case "connectionBurst": CONNECTION_BURST = Integer.valueOf(value); break;
+            case "presenceIntervalMillis": PRESENCE_INTERVAL_MILLIS = Long.valueOf(value); break;
+            case "mailboxSize": MAILBOX_SIZE = Integer.valueOf(value); break;
+            case "mailboxBytes": MAILBOX_BYTES = Long.valueOf(value); break;
+            case "heldMessagesPerSender": HELD_MESSAGES_PER_SENDER = Integer.valueOf(value); break;
+            case "mailboxHours": MAILBOX_HOURS = Long.valueOf(value); break;
+            case "nodeId": NODE_ID = value; break;
+            case "clusterPort": CLUSTER_PORT = Integer.valueOf(value); break;
+            case "clusterHub": CLUSTER_HUB = value; break;
+            case "clusterAddress": CLUSTER_ADDRESS = value; break;
+            case "clusterSecret": CLUSTER_SECRET = value; break;
+            default:
+                if (!ServerLimits.NAMES.contains(xmlTagName)) {
+                    log.warning("Ignoring unknown configuration element <" + xmlTagName + ">");
+                }
         }
     }
 
-    private static void readUsersValues(Element usersElement) {
-        for(Node node = usersElement.getFirstChild(); node != null; node = node.getNextSibling()) {
-            Element el = (Element) node;
-            Element nameEl = (Element) el.getFirstChild();
-            String name = nameEl.getTextContent().trim();
-            Element pwEl = (Element) el.getLastChild();
-            String pw = pwEl.getTextContent().trim();
-            users.put(name, pw);
+    // Streams through the file and collects the text of every element inside <server>.
+    // The DTD in the file documents the format; it is not validated against.
+    private static Map<String, String> readServerValues(Path file) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        Map<String, String> values = new LinkedHashMap<>();
+        try (InputStream in = Files.newInputStream(file)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                boolean inServer = false;
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            depth++;
+                            if (depth == 2) {
+                                inServer = reader.getLocalName().equals("server");
+                            } else if (depth == 3 && inServer) {
+                                values.put(reader.getLocalName(), reader.getElementText().trim());
+                                depth--;
+                            }
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            depth--;
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
         }
+        return values;
     }
 
     private static void parseConfigurationFile() {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setValidating(true);
-        factory.setIgnoringElementContentWhitespace(true);
-        Document document;
         try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            File file = new File(CONFIG_FILENAME);
-            document = builder.parse(file);
-            Element root = document.getDocumentElement();
-            Element server = (Element)root.getElementsByTagName("server").item(0);
-            readServerValues(server);
-            Element users = (Element) root.getElementsByTagName("users").item(0);
-            readUsersValues(users);
+            startupValues = readServerValues(Paths.get(CONFIG_FILENAME));
+            ServerLimits.required(startupValues, "port");
+            for (Map.Entry<String, String> value : startupValues.entrySet()) {
+                assignServerValue(value.getKey(), value.getValue());
+            }
+            limits = new ServerLimits(startupValues);
+            if (CLUSTER_PORT > 0 || CLUSTER_HUB != null) {
+                ServerLimits.required(startupValues, "clusterSecret");
+            }
 
         } catch (Exception e) {
             log.log(Level.SEVERE, "Error while parsing configuration", e);
@@ -83,6 +332,28 @@ public class Config {
         }
     }
 
+    // Re-reads the file and publishes the new limits. Other settings only take effect after a restart.
+    private static ServerLimits reload() throws IOException, XMLStreamException {
+        Map<String, String> values = readServerValues(Paths.get(CONFIG_FILENAME));
+        ServerLimits reloaded = new ServerLimits(values);
+        Set<String> names = new HashSet<>(values.keySet());
+        names.addAll(startupValues.keySet());
+        for (String name : names) {
+            if (!ServerLimits.NAMES.contains(name) && !Objects.equals(values.get(name), startupValues.get(name))) {
+                log.warning("Change of <" + name + "> takes effect after a restart");
+            }
+        }
+        limits = reloaded;
+        log.info("Reloaded configuration: " + reloaded);
+        return reloaded;
+    }
+
+    // Reloads the limits whenever the file changes and hands every new set to the listener.
+    static FileWatcher watch(Consumer<ServerLimits> listener) throws IOException {
+        return new FileWatcher(Paths.get(CONFIG_FILENAME), "zebrachat-config-watch",
+                () -> listener.accept(reload()));
+    }
+
     static {
         parseConfigurationFile();
     }
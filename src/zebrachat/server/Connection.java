@@ -2,98 +2,226 @@ package zebrachat.server;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.time.LocalDateTime;
-import java.util.logging.Level;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import sun.plugin.dom.exception.InvalidStateException;
 import zebrachat.protocol.*;
 
-public class Connection extends Thread implements Closeable{
-    private Socket socket;
-    private ZebraServer server;
-    private InetAddress userAddress;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
-    private static Logger log = ZebraServer.log;
-    private String username;
-
-    Connection(Socket socket, ZebraServer server) throws IOException {
-        this.socket = socket;
+public abstract class Connection implements Closeable {
+    private static final int INITIAL_READ_BUFFER_SIZE = 1024;
+    // Frames queued within the flush window, up to flushBytes, go out in one gathering write.
+    static final int MAX_BATCH_FRAMES = 128;
+    static final int FLUSH_BYTES = Config.getFlushBytes();
+    static final long FLUSH_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(Config.getFlushWindowMicros());
+    private static final long THROTTLE_NOTICE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    protected final SocketChannel channel;
+    protected final ZebraServer server;
+    protected final InetAddress userAddress;
+    protected static Logger log = ZebraServer.log;
+    protected final OutboundQueue outbound =
+            new OutboundQueue(Config.getOutboundQueueSize(), Config.getSlowConsumerPolicy());
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private boolean preambleRead;
+    private volatile String username;
+    private final Set<Room> rooms = ConcurrentHashMap.newKeySet();
+    private TokenBucket userRate = TokenBucket.UNLIMITED;
+    private TokenBucket addressRate = TokenBucket.UNLIMITED;
+    private long lastThrottleNotice = System.nanoTime() - THROTTLE_NOTICE_INTERVAL_NANOS;
+
+    Connection(SocketChannel channel, ZebraServer server) throws IOException {
+        this.channel = channel;
         this.server = server;
 
-        try {
-            in = new ObjectInputStream(socket.getInputStream());
-            out = new ObjectOutputStream(socket.getOutputStream());
-        } catch (IOException e) {
-            log.throwing(this.getClass().getName(), "zebrachat.server.Connection()", e);
-            throw e;
+        userAddress = channel.socket().getInetAddress();
+        assert userAddress != null;
+        // Writes are already batched, so there is nothing for Nagle's algorithm to add but delay.
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    void send(ByteBuffer frame) throws IOException {
+        if (!outbound.offer(frame)) {
+            ZebraServer.metrics.slowConsumersEvicted.increment();
+            log.warning("Outbound queue of " + username + " is full - disconnecting slow consumer");
+            evict();
+            return;
         }
+        frameQueued();
+    }
 
-        userAddress = socket.getInetAddress();
-        assert userAddress != null;
+    abstract void frameQueued();
+
+    abstract void evict();
+
+    public void sendMessage(ChatMessage message) throws IOException {
+        assert message != null;
+        send(MessageEncoder.encode(message));
     }
 
-    public LoginRequest readLoginRequest() throws IOException, ClassNotFoundException {
-        if(in == null) throw new InvalidStateException("Input stream is null");
-        LoginRequest request;
-        try {
-            request = (LoginRequest) in.readObject();
-            username = request.getUsername();
-        } catch (IOException | ClassNotFoundException e) {
-            log.throwing(this.getClass().getName(), "readLoginRequest", e);
-            throw e;
+    public void sendMessage(SystemMessage message) throws IOException {
+        assert message != null;
+        send(MessageEncoder.encode(message));
+    }
+
+    void processMessage(Object message) throws IOException {
+        if (username == null) {
+            if (message instanceof LoginRequest) {
+                handleLogin((LoginRequest) message);
+            } else {
+                closeAfterFlush();
+            }
+        } else if (!userRate.tryAcquire() || !addressRate.tryAcquire()) {
+            throttle();
+        } else if (message instanceof ChatMessage) {
+            server.postMessage(this, (ChatMessage) message);
+        } else if (message instanceof HistoryRequest) {
+            server.sendHistory(this, (HistoryRequest) message);
+        } else if (message instanceof SearchRequest) {
+            server.search(this, (SearchRequest) message);
+        } else if (message instanceof RoomRequest) {
+            server.handleRoomRequest(this, (RoomRequest) message);
+        } else if (message instanceof DirectMessage) {
+            server.sendDirectMessage(this, (DirectMessage) message);
+        } else if (message instanceof StatusUpdate) {
+            server.setStatus(this, ((StatusUpdate) message).getStatus());
+        } else {
+            log.warning("Unexpected message from " + username + ": " + message);
+        }
+    }
+
+    // Requests over the limit are dropped; a flooding client is told so at most once a second.
+    private void throttle() throws IOException {
+        ZebraServer.metrics.messagesThrottled.increment();
+        long now = System.nanoTime();
+        if (now - lastThrottleNotice >= THROTTLE_NOTICE_INTERVAL_NANOS) {
+            lastThrottleNotice = now;
+            sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "too many messages - dropping them"));
         }
-        return request;
     }
 
     @Override
-    public void run() {
+    public abstract void close();
+
+    void handleLogin(LoginRequest request) {
+        if (!server.admitAndLogin(this, request)) {
+            closeAfterFlush();
+        }
+    }
+
+    void closeAfterFlush() {
+        close();
+    }
+
+    int fillReadBuffer() throws IOException {
+        return channel.read(readBuffer);
+    }
+
+    Object nextMessage() throws IOException {
+        readBuffer.flip();
         try {
-            ChatMessage message;
-            try {
-                while((message = (ChatMessage)in.readObject()) != null) {
-                    message.setReceiptTime(LocalDateTime.now());
-                    server.broadcast(message);
+            if (!preambleRead) {
+                if (readBuffer.remaining() < Protocol.PREAMBLE_LENGTH) {
+                    return null;
+                }
+                preambleRead = true;
+                int version = Protocol.readPreamble(readBuffer);
+                if (version != Protocol.VERSION) {
+                    rejectProtocol(version);
+                    return null;
                 }
-            } catch (ClassNotFoundException e) {
-                log.log(Level.SEVERE, "Error while decoding message\n ", e);
             }
-
-        } catch (IOException e) {
-            log.log(Level.SEVERE, "IOException: ", e);
-
+            ByteBuffer body = MessageDecoder.nextFrame(readBuffer);
+            return body == null ? null : MessageDecoder.decode(body);
         } finally {
-            server.processUserLeft(username);
-            close();
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                growReadBuffer();
+            }
         }
     }
 
-    @Override
-    public void close() {
-        try {
-            log.info("Closing connection socket");
-            //server.processUserLeft(username);
-            socket.close();
-        } catch (IOException e) {
-            log.log(Level.WARNING,"IOException while closing socket: ", e);
+    private void rejectProtocol(int version) throws IOException {
+        log.warning(userAddress + " uses unsupported protocol version " + version);
+        sendMessage(new SystemMessage(SystemMessage.Status.ERROR,
+                "unsupported protocol version, please upgrade your client"));
+        closeAfterFlush();
+    }
+
+    private void growReadBuffer() throws IOException {
+        if (readBuffer.capacity() > Protocol.MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Frame exceeds " + Protocol.MAX_FRAME_LENGTH + " bytes");
         }
+        ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
     }
 
-    public void sendMessage(ChatMessage message) throws IOException {
-        assert out != null & message != null;
-        log.info("Writing message");
-        out.writeObject(message);
+    void resizeOutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        outbound.resize(capacity, policy);
     }
 
-    public void sendMessage(SystemMessage message) throws IOException {
-        assert out != null & message != null;
-        log.info("Writing system message");
-        out.writeObject(message);
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    public int getQueueHighWaterMark() {
+        return outbound.getHighWaterMark();
+    }
+
+    public long getDroppedFrames() {
+        return outbound.getDroppedFrames();
+    }
+
+    // Set at login, before the first request after it is read.
+    void limitRate(TokenBucket userRate, TokenBucket addressRate) {
+        this.userRate = userRate;
+        this.addressRate = addressRate;
+    }
+
+    void setUsername(String username) {
+        this.username = username;
     }
 
     public String getUsername() {
         return username;
     }
+
+    boolean addRoom(Room room) {
+        return rooms.add(room);
+    }
+
+    boolean removeRoom(Room room) {
+        return rooms.remove(room);
+    }
+
+    boolean isInRoom(Room room) {
+        return rooms.contains(room);
+    }
+
+    int getRoomCount() {
+        return rooms.size();
+    }
+
+    List<Room> leaveAllRooms() {
+        List<Room> left = new ArrayList<>();
+        for (Room room : rooms) {
+            if (rooms.remove(room)) {
+                left.add(room);
+            }
+        }
+        return left;
+    }
+
+    public InetAddress getUserAddress() {
+        return userAddress;
+    }
 }
@@ -0,0 +1,64 @@
+package zebrachat.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ConnectionRegistry {
+    enum Result {
+        REGISTERED, DUPLICATE, FULL
+    }
+
+    private final ConcurrentMap<String, Connection> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile int maximumConnections;
+
+    ConnectionRegistry(int maximumConnections) {
+        this.maximumConnections = maximumConnections;
+    }
+
+    // A slot is reserved before the insert, so concurrent joins can never push the
+    // registry past maximumConnections.
+    Result register(String username, Connection connection) {
+        if (size.incrementAndGet() > maximumConnections) {
+            size.decrementAndGet();
+            return Result.FULL;
+        }
+        if (connections.putIfAbsent(username, connection) != null) {
+            size.decrementAndGet();
+            return Result.DUPLICATE;
+        }
+        return Result.REGISTERED;
+    }
+
+    // Lowering the limit below the current size turns away new joins but keeps everyone connected.
+    void setMaximumConnections(int maximumConnections) {
+        this.maximumConnections = maximumConnections;
+    }
+
+    boolean unregister(String username, Connection connection) {
+        if (username != null && connections.remove(username, connection)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    boolean contains(String username) {
+        return connections.containsKey(username);
+    }
+
+    Connection get(String username) {
+        return connections.get(username);
+    }
+
+    // Weakly consistent view: iterating it never blocks joins or leaves.
+    Collection<Connection> connections() {
+        return connections.values();
+    }
+
+    int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,9 @@
+package zebrachat.server;
+
+// Checks user passwords.
+interface CredentialStore {
+    boolean verify(String username, String password);
+
+    // Whether there is such a user at all.
+    boolean contains(String username);
+}
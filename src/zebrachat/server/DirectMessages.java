@@ -0,0 +1,168 @@
+package zebrachat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Routes direct messages by username. A logged-in recipient is found in the connection registry
+// and gets the frame straight away, without going through a room, the sequencer or the history,
+// so a direct message costs the same however many users are online. For a recipient who is not
+// logged in the frame is held in a bounded mailbox, dropping the oldest, until they log in.
+//
+// Held messages are also bounded overall: by bytes across all mailboxes, by how many one sender
+// may have held at a time, and by age, so that one user cannot fill the heap with messages for
+// every account, nor can accounts that never log in keep the budget from everyone else.
+class DirectMessages {
+    private static Logger log = ZebraServer.log;
+    private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ConnectionRegistry connections;
+    private final int mailboxSize;
+    private final long maximumHeldBytes;
+    private final int maximumHeldPerSender;
+    private final long holdMillis;
+    // Sending to and emptying a user's mailbox both go through compute on the user's entry, so a
+    // message is either delivered or held, and held messages are delivered before any newer one.
+    private final ConcurrentMap<String, Deque<Held>> mailboxes = new ConcurrentHashMap<>();
+    // Changed inside compute calls on mailboxes; nothing locks the two maps the other way round.
+    private final ConcurrentMap<String, Integer> heldBySender = new ConcurrentHashMap<>();
+    private final AtomicLong heldBytes = new AtomicLong();
+    private volatile long lastSweep;
+
+    DirectMessages(ConnectionRegistry connections, int mailboxSize, long maximumHeldBytes,
+                   int maximumHeldPerSender, long holdMillis) {
+        this.connections = connections;
+        this.mailboxSize = mailboxSize;
+        this.maximumHeldBytes = maximumHeldBytes;
+        this.maximumHeldPerSender = maximumHeldPerSender;
+        this.holdMillis = holdMillis;
+    }
+
+    // Returns false if the recipient is not logged in and the message cannot be held: mailboxes
+    // are turned off, the sender has too many messages held already, or all mailboxes are full.
+    boolean send(String sender, String recipient, ByteBuffer frame) {
+        long now = System.currentTimeMillis();
+        if (heldBytes.get() + frame.remaining() > maximumHeldBytes && now - lastSweep > SWEEP_INTERVAL_MILLIS) {
+            sweep(now);
+        }
+        boolean[] accepted = {true};
+        mailboxes.compute(recipient, (username, mailbox) -> {
+            Connection connection = connections.get(username);
+            // A connection has its username once permission has been sent to it.
+            if (mailbox == null && connection != null && connection.getUsername() != null) {
+                deliver(connection, frame);
+                return null;
+            }
+            if (mailboxSize <= 0) {
+                accepted[0] = false;
+                return mailbox;
+            }
+            if (mailbox != null) {
+                expire(mailbox, now);
+            }
+            if (!reserve(sender, frame.remaining())) {
+                accepted[0] = false;
+                return mailbox == null || mailbox.isEmpty() ? null : mailbox;
+            }
+            if (mailbox == null) {
+                mailbox = new ArrayDeque<>();
+            }
+            if (mailbox.size() >= mailboxSize) {
+                unreserve(mailbox.poll());
+                ZebraServer.metrics.directMessagesDropped.increment();
+            }
+            mailbox.add(new Held(sender, frame, now));
+            ZebraServer.metrics.directMessagesHeld.increment();
+            return mailbox;
+        });
+        return accepted[0];
+    }
+
+    // Hands a user who has just logged in whatever was held for them and has not expired.
+    void open(Connection connection) {
+        long now = System.currentTimeMillis();
+        mailboxes.computeIfPresent(connection.getUsername(), (username, mailbox) -> {
+            expire(mailbox, now);
+            for (Held held : mailbox) {
+                unreserve(held);
+                deliver(connection, held.frame);
+            }
+            return null;
+        });
+    }
+
+    long getHeldBytes() {
+        return heldBytes.get();
+    }
+
+    private boolean reserve(String sender, int bytes) {
+        if (heldBytes.addAndGet(bytes) > maximumHeldBytes) {
+            heldBytes.addAndGet(-bytes);
+            return false;
+        }
+        boolean[] reserved = {true};
+        heldBySender.compute(sender, (username, count) -> {
+            if (count != null && count >= maximumHeldPerSender) {
+                reserved[0] = false;
+                return count;
+            }
+            return count == null ? 1 : count + 1;
+        });
+        if (!reserved[0]) {
+            heldBytes.addAndGet(-bytes);
+        }
+        return reserved[0];
+    }
+
+    private void unreserve(Held held) {
+        heldBytes.addAndGet(-held.frame.remaining());
+        heldBySender.computeIfPresent(held.sender, (username, count) -> count > 1 ? count - 1 : null);
+    }
+
+    // Messages are held oldest first, so the expired ones are at the head.
+    private void expire(Deque<Held> mailbox, long now) {
+        while (!mailbox.isEmpty() && now - mailbox.peek().heldAt > holdMillis) {
+            unreserve(mailbox.poll());
+            ZebraServer.metrics.directMessagesDropped.increment();
+        }
+    }
+
+    // Frees the budget held by the mailboxes of users who have not logged in for a long time.
+    private void sweep(long now) {
+        lastSweep = now;
+        for (String username : mailboxes.keySet()) {
+            mailboxes.computeIfPresent(username, (name, mailbox) -> {
+                expire(mailbox, now);
+                return mailbox.isEmpty() ? null : mailbox;
+            });
+        }
+    }
+
+    private void deliver(Connection connection, ByteBuffer frame) {
+        try {
+            connection.send(frame);
+            ZebraServer.metrics.directMessagesDelivered.increment();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error while sending direct message to " + connection.getUsername(), e);
+        }
+    }
+
+    private static final class Held {
+        final String sender;
+        final ByteBuffer frame;
+        final long heldAt;
+
+        Held(String sender, ByteBuffer frame, long heldAt) {
+            this.sender = sender;
+            this.frame = frame;
+            this.heldAt = heldAt;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package zebrachat.server;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.logging.Logger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Credentials in a text file with one "username:iterations:salt:hash" line per user, where salt
+// and hash are Base64 and hash is PBKDF2-HMAC-SHA256 of the password. Lines starting with # are
+// comments. The file is reloaded whenever it changes, and successful verifications are cached
+// so that a reconnect storm does not run PBKDF2 for every returning user.
+class FileCredentialStore implements CredentialStore, Closeable {
+    private static Logger log = ZebraServer.log;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    static final int DEFAULT_ITERATIONS = 600_000;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    // Verified against when the username is unknown, so that unknown users take as long as known ones.
+    private static final Credential UNKNOWN_USER =
+            new Credential(DEFAULT_ITERATIONS, new byte[SALT_LENGTH], new byte[HASH_LENGTH]);
+
+    private final Path file;
+    private final Map<String, CachedLogin> cache;
+    private volatile Map<String, Credential> credentials = Collections.emptyMap();
+    private FileWatcher watcher;
+
+    FileCredentialStore(Path file, int cacheSize) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.cache = new LinkedHashMap<String, CachedLogin>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedLogin> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        reload();
+    }
+
+    // Reloads the file on every change until closed.
+    void watch() throws IOException {
+        watcher = new FileWatcher(file, "zebrachat-credentials-watch", this::reload);
+    }
+
+    void reload() throws IOException {
+        Map<String, Credential> loaded = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = splitEntry(line);
+                if (fields == null) {
+                    throw new IOException("Malformed credential entry at " + file + ":" + number);
+                }
+                loaded.put(fields[0], new Credential(Integer.parseInt(fields[1]),
+                        Base64.getDecoder().decode(fields[2]), Base64.getDecoder().decode(fields[3])));
+            }
+        }
+        credentials = loaded;
+        synchronized (cache) {
+            cache.clear();
+        }
+        log.info("Loaded " + loaded.size() + " credentials from " + file);
+    }
+
+    // Splits from the right, so usernames may contain colons.
+    private static String[] splitEntry(String line) {
+        String[] fields = new String[4];
+        int end = line.length();
+        for (int i = 3; i > 0; i--) {
+            int colon = line.lastIndexOf(':', end - 1);
+            if (colon <= 0) {
+                return null;
+            }
+            fields[i] = line.substring(colon + 1, end);
+            end = colon;
+        }
+        fields[0] = line.substring(0, end);
+        return fields;
+    }
+
+    @Override
+    public boolean verify(String username, String password) {
+        if (username == null || password == null) {
+            return false;
+        }
+        Credential credential = credentials.get(username);
+        if (credential == null) {
+            UNKNOWN_USER.matches(password);
+            return false;
+        }
+
+        byte[] check = credential.quickHash(password);
+        CachedLogin cached;
+        synchronized (cache) {
+            cached = cache.get(username);
+        }
+        if (cached != null && cached.credential == credential && MessageDigest.isEqual(cached.check, check)) {
+            return true;
+        }
+
+        if (!credential.matches(password)) {
+            return false;
+        }
+        synchronized (cache) {
+            cache.put(username, new CachedLogin(credential, check));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(String username) {
+        return credentials.containsKey(username);
+    }
+
+    @Override
+    public void close() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    static String entry(String username, String password) {
+        return entry(username, password, DEFAULT_ITERATIONS);
+    }
+
+    static String entry(String username, String password, int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        return username + ":" + iterations + ":" + Base64.getEncoder().encodeToString(salt)
+                + ":" + Base64.getEncoder().encodeToString(hash);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH * 8);
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static final class Credential {
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        boolean matches(String password) {
+            return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations));
+        }
+
+        // A cheap salted hash of the password. It is only ever kept in memory, to recognise a
+        // password that has already passed the full check.
+        byte[] quickHash(String password) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(salt);
+                return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static final class CachedLogin {
+        final Credential credential;
+        final byte[] check;
+
+        CachedLogin(Credential credential, byte[] check) {
+            this.credential = credential;
+            this.check = check;
+        }
+    }
+
+    // Adds or replaces a user's entry:
+    //   java zebrachat.server.FileCredentialStore <file> <username> <password>
+    // or the entries of <prefix>0 to <prefix><count - 1>, e.g. for load tests, with a cheaper hash:
+    //   java zebrachat.server.FileCredentialStore <file> --generate <prefix> <count> <password> <iterations>
+    // A running server picks the change up by itself.
+    public static void main(String[] args) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        if (args.length == 3 && !args[1].equals("--generate")) {
+            entries.put(args[1], entry(args[1], args[2]));
+        } else if (args.length == 6 && args[1].equals("--generate")) {
+            int count = Integer.parseInt(args[3]);
+            int iterations = Integer.parseInt(args[5]);
+            for (int i = 0; i < count; i++) {
+                entries.put(args[2] + i, entry(args[2] + i, args[4], iterations));
+            }
+        } else {
+            System.err.println("Usage: java zebrachat.server.FileCredentialStore <file> <username> <password>");
+            System.err.println("       java zebrachat.server.FileCredentialStore <file> --generate <prefix> <count>"
+                    + " <password> <iterations>");
+            System.exit(1);
+        }
+        Path path = Paths.get(args[0]);
+        List<String> lines = Files.exists(path)
+                ? new ArrayList<>(Files.readAllLines(path, StandardCharsets.UTF_8)) : new ArrayList<>();
+        lines.removeIf(line -> {
+            String[] fields = splitEntry(line.trim());
+            return !line.startsWith("#") && fields != null && entries.containsKey(fields[0]);
+        });
+        lines.addAll(entries.values());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, lines, StandardCharsets.UTF_8);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,67 @@
+package zebrachat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Watches a file's directory from a daemon thread and calls the listener once after every change
+// to the file, until closed. If the listener fails, whatever it loaded before stays in effect.
+class FileWatcher implements Closeable {
+    private static Logger log = ZebraServer.log;
+    private static final long SETTLE_MILLIS = 200;
+
+    interface Listener {
+        void changed() throws Exception;
+    }
+
+    private final Path file;
+    private final Listener listener;
+    private final WatchService watcher;
+
+    FileWatcher(Path file, String threadName, Listener listener) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.listener = listener;
+        this.watcher = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread.ofPlatform().daemon().name(threadName).start(this::watch);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                boolean changed = false;
+                WatchKey key = watcher.take();
+                // An editor saving in place can cause several events; reload once it is done.
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (changed) {
+                    try {
+                        listener.changed();
+                    } catch (Exception e) {
+                        log.log(Level.SEVERE, "Error while reloading " + file + " - keeping the previous version", e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error while closing watcher of " + file, e);
+        }
+    }
+}
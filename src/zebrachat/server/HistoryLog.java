@@ -0,0 +1,385 @@
+package zebrachat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import zebrachat.protocol.Protocol;
+
+// Append-only chat history on disk, split into fixed-size memory-mapped segments.
+// Each record is a CRC32C followed by the message frame exactly as it is sent on the wire,
+// so replaying history is a matter of handing out read-only slices of the mapped segments.
+// A record's position in the log is the id of the message it holds; rooms index into it
+// through IndexedHistory.
+// Appends and retention take the log's lock; reads take none. The segment array is replaced
+// rather than changed, and a segment's record count is published after the record itself.
+class HistoryLog implements Closeable {
+    private static Logger log = ZebraServer.log;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int CRC_LENGTH = 4;
+    private static final int MIN_SEGMENT_SIZE = Protocol.MAX_FRAME_LENGTH + 2 * CRC_LENGTH + 8;
+    private static final long RETENTION_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Path directory;
+    private final int segmentSize;
+    private long retentionBytes;
+    private long retentionMillis;
+    private final long fsyncIntervalMillis;
+    private volatile Segment[] segments;
+    private final CRC32C crc = new CRC32C();
+    // Forces rolled segments, and the active one every fsyncIntervalMillis, outside the lock,
+    // and enforces retention on servers too quiet to ever roll a segment.
+    private final ScheduledExecutorService flusher;
+
+    HistoryLog(Path directory, int segmentSize, long retentionBytes, long retentionMillis,
+               long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+
+        Files.createDirectories(directory);
+        List<Segment> recovered = recover();
+        if (recovered.isEmpty()) {
+            recovered.add(Segment.create(segmentPath(1), 1, this.segmentSize));
+        }
+        segments = recovered.toArray(new Segment[0]);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "zebrachat-history-fsync");
+            t.setDaemon(true);
+            return t;
+        });
+        if (fsyncIntervalMillis > 0) {
+            flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMillis, fsyncIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        flusher.scheduleWithFixedDelay(this::expire, RETENTION_CHECK_MILLIS, RETENTION_CHECK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private List<Segment> recover() throws IOException {
+        List<Segment> recovered = new ArrayList<>();
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseIndex = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = Segment.open(file, baseIndex);
+            segment.scan(crc);
+            recovered.add(segment);
+        }
+        if (!recovered.isEmpty()) {
+            Segment last = recovered.get(recovered.size() - 1);
+            long records = last.baseIndex + last.count - recovered.get(0).baseIndex;
+            log.info("Recovered " + records + " history records from " + recovered.size() + " segments");
+        }
+        return recovered;
+    }
+
+    // Returns a read-only view of the persisted frame, which can be sent in place of the original.
+    // Frames that no decoder would accept are refused, so that recovery never has to deal with them.
+    synchronized ByteBuffer append(ByteBuffer frame) throws IOException {
+        int length = frame.remaining();
+        long bodyLength = Segment.bodyLength(frame, frame.position());
+        if (bodyLength <= 0 || bodyLength > Protocol.MAX_FRAME_LENGTH
+                || Segment.headerLength(bodyLength) + bodyLength != length) {
+            throw new ProtocolException("Refusing to store an invalid frame of " + length + " bytes");
+        }
+        Segment active = active();
+        if (!active.fits(length)) {
+            active = roll(nextId());
+        }
+        crc.reset();
+        crc.update(frame.duplicate());
+        ByteBuffer persisted = active.append((int) crc.getValue(), frame);
+        if (fsyncIntervalMillis == 0) {
+            active.buffer.force();
+        }
+        return persisted;
+    }
+
+    // Makes id the position of the next append. Used when messages sequenced elsewhere arrive
+    // after a gap: the ids in between are simply never stored.
+    synchronized void skipTo(long id) throws IOException {
+        if (id > nextId()) {
+            roll(id);
+        }
+    }
+
+    ByteBuffer frame(long id) {
+        Segment[] current = segments;
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (current[mid].baseIndex <= id) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        Segment segment = current[low];
+        long index = id - segment.baseIndex;
+        return index >= 0 && index < segment.count ? segment.frame((int) index) : null;
+    }
+
+    long firstId() {
+        return segments[0].baseIndex;
+    }
+
+    // Exclusive upper bound: the id the next message will get.
+    long nextId() {
+        Segment active = active();
+        return active.baseIndex + active.count;
+    }
+
+    long size() {
+        return nextId() - firstId();
+    }
+
+    private Segment active() {
+        Segment[] current = segments;
+        return current[current.length - 1];
+    }
+
+    private Segment roll(long baseIndex) throws IOException {
+        Segment previous = active();
+        Segment next = Segment.create(segmentPath(baseIndex), baseIndex, segmentSize);
+        Segment[] current = segments;
+        Segment[] rolled = Arrays.copyOf(current, current.length + 1);
+        rolled[current.length] = next;
+        segments = rolled;
+        flusher.execute(() -> force(previous));
+        enforceRetention();
+        return next;
+    }
+
+    synchronized void setRetention(long retentionBytes, long retentionMillis) {
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        enforceRetention();
+    }
+
+    // The active segment is only deleted once rolled, so an expired one is rolled first.
+    private synchronized void expire() {
+        Segment active = active();
+        if (retentionMillis > 0 && active.count > 0
+                && System.currentTimeMillis() - active.lastAppendMillis > retentionMillis) {
+            try {
+                roll(nextId());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Error while rolling expired history segment", e);
+            }
+        } else {
+            enforceRetention();
+        }
+    }
+
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        Segment[] current = segments;
+        int expired = 0;
+        while (current.length - expired > 1) {
+            Segment oldest = current[expired];
+            boolean tooLarge = retentionBytes > 0
+                    && (long) (current.length - expired) * segmentSize > retentionBytes;
+            boolean tooOld = retentionMillis > 0 && now - oldest.lastAppendMillis > retentionMillis;
+            if (!tooLarge && !tooOld) {
+                break;
+            }
+            expired++;
+        }
+        if (expired > 0) {
+            segments = Arrays.copyOfRange(current, expired, current.length);
+            for (int i = 0; i < expired; i++) {
+                current[i].delete();
+            }
+        }
+    }
+
+    void flush() {
+        force(active());
+    }
+
+    private static void force(Segment segment) {
+        try {
+            segment.buffer.force();
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Error while flushing history segment " + segment.path, e);
+        }
+    }
+
+    private Path segmentPath(long baseIndex) {
+        return directory.resolve(String.format("%020d%s", baseIndex, SEGMENT_SUFFIX));
+    }
+
+    @Override
+    public synchronized void close() {
+        // Forces of rolled segments that are already queued still run.
+        flusher.shutdown();
+        flush();
+        for (Segment segment : segments) {
+            segment.closeChannel();
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long baseIndex;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int[] offsets = new int[1024];
+        // Written after the record and its offset, and read before them.
+        volatile int count;
+        int position;
+        long lastAppendMillis;
+
+        private Segment(Path path, long baseIndex, FileChannel channel, int size) throws IOException {
+            this.path = path;
+            this.baseIndex = baseIndex;
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.lastAppendMillis = System.currentTimeMillis();
+        }
+
+        static Segment create(Path path, long baseIndex, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(path, baseIndex, channel, size);
+        }
+
+        static Segment open(Path path, long baseIndex) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(path, baseIndex, channel, (int) channel.size());
+            segment.lastAppendMillis = Files.getLastModifiedTime(path).toMillis();
+            return segment;
+        }
+
+        // Finds the end of the valid records. A zero length is the unwritten tail and a CRC mismatch
+        // a torn write; either ends the scan, and what follows is overwritten. Records longer than
+        // the protocol allows, written before appends were checked, keep their ids but read as
+        // missing. Any other bad length means the segment is corrupt, and is not papered over.
+        void scan(CRC32C crc) throws IOException {
+            while (position + CRC_LENGTH < buffer.capacity()) {
+                int frameStart = position + CRC_LENGTH;
+                long bodyLength = bodyLength(buffer, frameStart);
+                if (bodyLength == 0) {
+                    break;
+                }
+                long frameLength = bodyLength < 0 ? -1 : headerLength(bodyLength) + bodyLength;
+                if (frameLength < 0 || frameStart + frameLength > buffer.capacity()) {
+                    throw new IOException("Corrupt history record in " + path + " at " + position
+                            + " - move the segment aside to start without it");
+                }
+                crc.reset();
+                crc.update(buffer.slice(frameStart, (int) frameLength));
+                if ((int) crc.getValue() != buffer.getInt(position)) {
+                    log.warning("Discarding torn history record in " + path + " at " + position);
+                    break;
+                }
+                if (bodyLength > Protocol.MAX_FRAME_LENGTH) {
+                    log.warning("Skipping oversized history record " + (baseIndex + count) + " in " + path);
+                    addOffset(-frameStart);
+                } else {
+                    addOffset(frameStart);
+                }
+                position = frameStart + (int) frameLength;
+            }
+        }
+
+        // The body length in the varint header of the frame at offset, or -1 if the header is
+        // cut off or longer than any valid one.
+        static long bodyLength(ByteBuffer buffer, int offset) {
+            long length = 0;
+            for (int i = 0, shift = 0; i < 5 && offset + i < buffer.limit(); i++, shift += 7) {
+                byte b = buffer.get(offset + i);
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return length;
+                }
+            }
+            return -1;
+        }
+
+        static int headerLength(long bodyLength) {
+            int length = 1;
+            while ((bodyLength >>>= 7) != 0) {
+                length++;
+            }
+            return length;
+        }
+
+        boolean fits(int frameLength) {
+            return position + CRC_LENGTH + frameLength <= buffer.capacity();
+        }
+
+        ByteBuffer append(int checksum, ByteBuffer frame) {
+            int length = frame.remaining();
+            int frameStart = position + CRC_LENGTH;
+            buffer.put(frameStart, frame, frame.position(), length);
+            buffer.putInt(position, checksum);
+            addOffset(frameStart);
+            position = frameStart + length;
+            lastAppendMillis = System.currentTimeMillis();
+            return buffer.slice(frameStart, length).asReadOnlyBuffer();
+        }
+
+        // Skipped records have their offset negated. The caller has checked index against count.
+        ByteBuffer frame(int index) {
+            int start = offsets[index];
+            if (start < 0) {
+                return null;
+            }
+            long bodyLength = bodyLength(buffer, start);
+            return buffer.slice(start, headerLength(bodyLength) + (int) bodyLength).asReadOnlyBuffer();
+        }
+
+        private void addOffset(int offset) {
+            int n = count;
+            if (n == offsets.length) {
+                offsets = Arrays.copyOf(offsets, n * 2);
+            }
+            offsets[n] = offset;
+            count = n + 1;
+        }
+
+        void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Error while closing history segment " + path, e);
+            }
+        }
+
+        void delete() {
+            closeChannel();
+            try {
+                Files.deleteIfExists(path);
+                log.info("Deleted expired history segment " + path);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Error while deleting history segment " + path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package zebrachat.server;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import zebrachat.protocol.*;
+
+// Builds HistoryPage frames out of stored message frames without re-encoding them.
+final class HistoryPager {
+    private static final int MAX_PAGE_BYTES = Protocol.MAX_FRAME_LENGTH / 2;
+
+    private HistoryPager() {
+    }
+
+    static ByteBuffer page(String room, MessageStore store, HistoryRequest request, int maxPageSize)
+            throws ProtocolException {
+        long first = store.firstPosition();
+        long end = store.nextPosition();
+        if (request.getBeforeId() > 0) {
+            end = positionAfter(store, first, end, request.getBeforeId() - 1);
+        }
+        if (request.getTo() != null) {
+            end = positionAfter(store, first, end, request.getTo());
+        }
+        int pageSize = Math.max(1, Math.min(request.getPageSize(), maxPageSize));
+
+        Deque<ByteBuffer> frames = new ArrayDeque<>(pageSize);
+        int bytes = 0;
+        boolean hasMore = false;
+        for (long position = end - 1; position >= first; position--) {
+            ByteBuffer frame = store.frame(position);
+            if (frame == null) {
+                continue;
+            }
+            if (request.getFrom() != null && receiptTime(frame).isBefore(request.getFrom())) {
+                break;
+            }
+            // A page always holds at least one message, or the client could not page past it.
+            if (frames.size() == pageSize || (!frames.isEmpty() && bytes + frame.remaining() > MAX_PAGE_BYTES)) {
+                hasMore = true;
+                break;
+            }
+            frames.addFirst(frame);
+            bytes += frame.remaining();
+        }
+        return MessageEncoder.encodeHistoryPage(room, new ArrayList<>(frames), hasMore);
+    }
+
+    // The newest matches of a search, returned oldest first like a history page.
+    static ByteBuffer searchResult(String room, MessageStore store, SearchIndex index, SearchRequest request,
+            int maxPageSize) {
+        long end = store.nextPosition();
+        if (request.getBeforeId() > 0) {
+            end = positionAfter(store, store.firstPosition(), end, request.getBeforeId() - 1);
+        }
+        int limit = request.getLimit() > 0 ? request.getLimit() : Config.getHistoryPageSize();
+        limit = Math.max(1, Math.min(limit, maxPageSize));
+        List<String> terms = SearchIndex.terms(request.getText());
+        if (request.getText() != null && terms.isEmpty()) {
+            // Nothing in the text is searchable, e.g. only punctuation, so nothing can contain all of it.
+            return MessageEncoder.encodeSearchResult(room, Collections.emptyList(), false);
+        }
+        // One more than asked for tells whether there are more.
+        long[] positions = index.search(terms, request.getUsername(),
+                SearchIndex.epochMillis(request.getFrom(), Long.MIN_VALUE),
+                SearchIndex.epochMillis(request.getTo(), Long.MAX_VALUE), end, limit + 1);
+
+        Deque<ByteBuffer> frames = new ArrayDeque<>(limit);
+        int bytes = 0;
+        boolean hasMore = positions.length > limit;
+        for (int i = 0; i < positions.length && i < limit; i++) {
+            ByteBuffer frame = store.frame(positions[i]);
+            if (frame == null) {
+                // Evicted, and so is every older match.
+                hasMore = false;
+                break;
+            }
+            // Like a history page, a result always holds at least one message.
+            if (!frames.isEmpty() && bytes + frame.remaining() > MAX_PAGE_BYTES) {
+                hasMore = true;
+                break;
+            }
+            frames.addFirst(frame);
+            bytes += frame.remaining();
+        }
+        return MessageEncoder.encodeSearchResult(room, new ArrayList<>(frames), hasMore);
+    }
+
+    // Every stored message after afterId, oldest first, split into as many pages as needed.
+    static List<ByteBuffer> pagesAfter(String room, MessageStore store, long afterId, int maxPageSize) {
+        List<ByteBuffer> pages = new ArrayList<>();
+        List<ByteBuffer> frames = new ArrayList<>(maxPageSize);
+        int bytes = 0;
+        long end = store.nextPosition();
+        for (long position = positionAfter(store, afterId); position < end; position++) {
+            ByteBuffer frame = store.frame(position);
+            if (frame == null) {
+                continue;
+            }
+            if (frames.size() == maxPageSize || (!frames.isEmpty() && bytes + frame.remaining() > MAX_PAGE_BYTES)) {
+                pages.add(MessageEncoder.encodeHistoryPage(room, frames, false));
+                frames.clear();
+                bytes = 0;
+            }
+            frames.add(frame);
+            bytes += frame.remaining();
+        }
+        if (!frames.isEmpty()) {
+            pages.add(MessageEncoder.encodeHistoryPage(room, frames, false));
+        }
+        return pages;
+    }
+
+    // The position of the first stored message with an id greater than the given one.
+    static long positionAfter(MessageStore store, long id) {
+        return positionAfter(store, store.firstPosition(), store.nextPosition(), id);
+    }
+
+    // Positions that were evicted while searching read as -1 and so count as older.
+    private static long positionAfter(MessageStore store, long low, long high, long id) {
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (store.id(mid) > id) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    // The sequencer stamps receipt times in id order, so the end of a time range can be found by bisection.
+    // Frames that were evicted while searching read as null and, as above, count as older.
+    private static long positionAfter(MessageStore store, long low, long high, LocalDateTime to)
+            throws ProtocolException {
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            ByteBuffer frame = store.frame(mid);
+            if (frame != null && receiptTime(frame).isAfter(to)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private static LocalDateTime receiptTime(ByteBuffer frame) throws ProtocolException {
+        ChatMessage message = (ChatMessage) MessageDecoder.decode(MessageDecoder.nextFrame(frame.duplicate()));
+        return message.getReceiptTime();
+    }
+}
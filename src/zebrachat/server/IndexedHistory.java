@@ -0,0 +1,96 @@
+package zebrachat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A room's history when messages are persisted: the room only keeps the ids of its messages,
+// the frames themselves are read from the shared history log. Ids of messages the log has
+// expired are dropped whenever the index has to grow. Appends come from the room's broadcast
+// worker only; reads never block.
+class IndexedHistory implements MessageStore {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final HistoryLog log;
+    // Readers load next before ids, so they always see an array holding every published position.
+    private volatile Ids ids = new Ids(new long[INITIAL_CAPACITY], 0);
+    private volatile long next;
+
+    IndexedHistory(HistoryLog log) {
+        this.log = log;
+    }
+
+    @Override
+    public void append(long id, ByteBuffer frame) {
+        long position = next;
+        Ids current = ids;
+        if (position - current.offset == current.values.length) {
+            current = current.compact(position, log.firstId());
+            ids = current;
+        }
+        current.values[(int) (position - current.offset)] = id;
+        next = position + 1;
+    }
+
+    @Override
+    public long firstPosition() {
+        long end = next;
+        Ids current = ids;
+        // Skip the positions whose messages the log has already expired.
+        long firstId = log.firstId();
+        long low = current.offset;
+        long high = end;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (current.get(mid) < firstId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public long nextPosition() {
+        return next;
+    }
+
+    @Override
+    public long id(long position) {
+        long end = next;
+        Ids current = ids;
+        return position < end ? current.get(position) : -1;
+    }
+
+    @Override
+    public ByteBuffer frame(long position) {
+        long id = id(position);
+        return id < 0 ? null : log.frame(id);
+    }
+
+    // Arrays are never written to again once replaced, so a reader holding an old one stays consistent.
+    private static final class Ids {
+        final long[] values;
+        final long offset;
+
+        Ids(long[] values, long offset) {
+            this.values = values;
+            this.offset = offset;
+        }
+
+        long get(long position) {
+            long index = position - offset;
+            return index >= 0 && index < values.length ? values[(int) index] : -1;
+        }
+
+        // Called when full: keeps the ids from minId on, with room to grow.
+        Ids compact(long end, long minId) {
+            int live = Arrays.binarySearch(values, minId);
+            int start = live >= 0 ? live : -live - 1;
+            int remaining = values.length - start;
+            long[] larger = new long[Math.max(INITIAL_CAPACITY, remaining * 2)];
+            System.arraycopy(values, start, larger, 0, remaining);
+            return new Ids(larger, end - remaining);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package zebrachat.server;
+
+import zebrachat.protocol.ChatMessage;
+
+// A single node: messages are sequenced here and delivered straight back.
+class LocalMessageBus implements MessageBus {
+    private final Sequencer sequencer;
+    private final PresenceTable presence = new PresenceTable();
+    private Subscriber subscriber;
+
+    LocalMessageBus(Sequencer sequencer) {
+        this.sequencer = sequencer;
+    }
+
+    @Override
+    public void start(Subscriber subscriber) {
+        this.subscriber = subscriber;
+    }
+
+    @Override
+    public void publish(ChatMessage message) {
+        subscriber.deliver(message, sequencer.sequence(message));
+    }
+
+    @Override
+    public PresenceRegistry presence() {
+        return presence;
+    }
+
+    @Override
+    public void close() {
+    }
+}
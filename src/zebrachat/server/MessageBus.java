@@ -0,0 +1,33 @@
+package zebrachat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import zebrachat.protocol.ChatMessage;
+
+// Carries chat messages between the nodes of a cluster. Every node receives every message once,
+// with the same id, and in id order within each room.
+interface MessageBus extends Closeable {
+
+    interface Subscriber {
+        // A sequenced message for this node's members. May be called on any thread.
+        void deliver(ChatMessage message, ByteBuffer frame);
+
+        // A message published on another node that this node has to sequence.
+        void submit(ChatMessage message);
+
+        // The user logged in here has been claimed by another node, so its session has to end.
+        void revoke(String username);
+    }
+
+    void start(Subscriber subscriber) throws IOException;
+
+    // Called on the broadcast worker of the message's room.
+    void publish(ChatMessage message);
+
+    PresenceRegistry presence();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,103 @@
+package zebrachat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded ring of a room's most recent message frames. Appends and resizes come from the room's
+// broadcast worker only; reads never block.
+class MessageHistory implements MessageStore {
+    private volatile Ring ring;
+    private volatile long head;
+
+    MessageHistory(int capacity) {
+        this.ring = new Ring(capacity);
+    }
+
+    @Override
+    public void append(long id, ByteBuffer frame) {
+        long position = head;
+        ring.set(position, new Entry(position, id, frame));
+        head = position + 1;
+    }
+
+    // Copies the most recent messages that fit into a ring of the new capacity. Readers still
+    // holding the old ring finish on it; positions do not change.
+    void resize(int capacity) {
+        Ring resized = new Ring(capacity);
+        for (long position = Math.max(0, head - capacity); position < head; position++) {
+            Entry entry = ring.get(position);
+            if (entry != null) {
+                resized.set(position, entry);
+            }
+        }
+        ring = resized;
+    }
+
+    @Override
+    public long firstPosition() {
+        return Math.max(0, head - ring.capacity);
+    }
+
+    @Override
+    public long nextPosition() {
+        return head;
+    }
+
+    @Override
+    public long id(long position) {
+        Entry entry = entry(position);
+        return entry != null ? entry.id : -1;
+    }
+
+    @Override
+    public ByteBuffer frame(long position) {
+        Entry entry = entry(position);
+        return entry != null ? entry.frame : null;
+    }
+
+    // Each slot records the position written into it, so a slot the writer has lapped
+    // is detected and reported as missing rather than returned as the wrong message.
+    private Entry entry(long position) {
+        return position < 0 ? null : ring.get(position);
+    }
+
+    int size() {
+        return (int) (nextPosition() - firstPosition());
+    }
+
+    private static final class Ring {
+        final int capacity;
+        final AtomicReferenceArray<Entry> slots;
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            this.slots = new AtomicReferenceArray<>(Math.max(capacity, 1));
+        }
+
+        void set(long position, Entry entry) {
+            if (capacity > 0) {
+                slots.set((int) (position % capacity), entry);
+            }
+        }
+
+        Entry get(long position) {
+            if (capacity == 0) {
+                return null;
+            }
+            Entry entry = slots.get((int) (position % capacity));
+            return entry != null && entry.position == position ? entry : null;
+        }
+    }
+
+    private static final class Entry {
+        final long position;
+        final long id;
+        final ByteBuffer frame;
+
+        Entry(long position, long id, ByteBuffer frame) {
+            this.position = position;
+            this.id = id;
+            this.frame = frame;
+        }
+    }
+}
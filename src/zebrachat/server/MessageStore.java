@@ -0,0 +1,22 @@
+package zebrachat.server;
+
+import java.nio.ByteBuffer;
+
+// Read access to the encoded chat message frames of one room. Messages are addressed by their
+// position in the room: the room's first message ever is at position 0 and each message
+// appended takes the next one. Message ids are global and so only increase along positions.
+interface MessageStore {
+    long firstPosition();
+
+    // Exclusive upper bound: the position the next message will take.
+    long nextPosition();
+
+    // The id of the message at the given position, or -1 if it is no longer (or not yet) stored.
+    long id(long position);
+
+    // The frame of the message at the given position, or null if it is no longer (or not yet) stored.
+    ByteBuffer frame(long position);
+
+    // Called by the room's broadcast worker only.
+    void append(long id, ByteBuffer frame);
+}
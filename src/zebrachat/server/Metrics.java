@@ -0,0 +1,227 @@
+package zebrachat.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.LatencyHistogram;
+
+// Counters, latency histograms (in microseconds) and gauges of the running server. Recording
+// costs a LongAdder increment or a lock-free histogram update; gauges are only evaluated when the
+// metrics are read, through JMX as zebrachat:type=Metrics or as plain text from
+// http://localhost:<metricsPort>/metrics.
+class Metrics implements DynamicMBean {
+    private static Logger log = ZebraServer.log;
+    private static final String PREFIX = "zebrachat_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Supplier<Number>> values = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<String>> pages = new ConcurrentSkipListMap<>();
+    private ObjectName name;
+    private HttpServer endpoint;
+
+    final LongAdder connectionsAccepted = counter("connections_accepted_total");
+    final LongAdder loginsSucceeded = counter("logins_succeeded_total");
+    final LongAdder loginsFailed = counter("logins_failed_total");
+    final LongAdder roomsEntered = counter("rooms_entered_total");
+    final LongAdder messagesDelivered = counter("messages_delivered_total");
+    final LongAdder framesFannedOut = counter("frames_fanned_out_total");
+    final LongAdder framesWritten = counter("frames_written_total");
+    final LongAdder bytesWritten = counter("bytes_written_total");
+    final LongAdder slowConsumersEvicted = counter("slow_consumers_evicted_total");
+    final LongAdder messagesThrottled = counter("messages_throttled_total");
+    final LongAdder connectionsThrottled = counter("connections_throttled_total");
+    final LongAdder presenceChanges = counter("presence_changes_total");
+    final LongAdder directMessagesDelivered = counter("direct_messages_delivered_total");
+    final LongAdder directMessagesHeld = counter("direct_messages_held_total");
+    final LongAdder directMessagesDropped = counter("direct_messages_dropped_total");
+    // From accepting a socket until its connection is set up.
+    final LatencyHistogram acceptLatency = histogram("accept_latency_us");
+    // The whole handshake, waiting for admission included.
+    final LatencyHistogram loginLatency = histogram("login_latency_us");
+    // From asking to enter a room until its history has been queued to the new member.
+    final LatencyHistogram joinLatency = histogram("join_latency_us");
+    // From a message being posted until it has been sequenced and published, room queue included.
+    final LatencyHistogram broadcastLatency = histogram("broadcast_latency_us");
+    // Appending a sequenced message to the room's history and queueing it to every member.
+    final LatencyHistogram fanOutLatency = histogram("fan_out_latency_us");
+    // One (gathering) socket write.
+    final LatencyHistogram writeLatency = histogram("write_latency_us");
+    // Looking up a search in the room's index and encoding its result, on the room's worker.
+    final LatencyHistogram searchLatency = histogram("search_latency_us");
+
+    static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    private LongAdder counter(String name) {
+        LongAdder counter = new LongAdder();
+        values.put(name, counter::sum);
+        return counter;
+    }
+
+    private LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histograms.put(name, histogram);
+        return histogram;
+    }
+
+    void gauge(String name, Supplier<Number> gauge) {
+        values.put(name, gauge);
+    }
+
+    // Serves more plain text next to the metrics, e.g. the trace ring.
+    void serve(String path, Supplier<String> page) {
+        pages.put(path, page);
+    }
+
+    void start(int port) {
+        try {
+            name = new ObjectName("zebrachat:type=Metrics");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Could not register metrics with JMX", e);
+        }
+        if (port > 0) {
+            try {
+                endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                pages.put("/metrics", this::scrape);
+                for (Map.Entry<String, Supplier<String>> page : pages.entrySet()) {
+                    endpoint.createContext(page.getKey(), exchange -> {
+                        byte[] body = page.getValue().get().getBytes(StandardCharsets.UTF_8);
+                        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                        exchange.sendResponseHeaders(200, body.length);
+                        try (OutputStream out = exchange.getResponseBody()) {
+                            out.write(body);
+                        }
+                    });
+                }
+                endpoint.start();
+                log.info("Serving metrics at http://localhost:" + port + "/metrics");
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not serve metrics on port " + port, e);
+            }
+        }
+    }
+
+    void stop() {
+        if (endpoint != null) {
+            endpoint.stop(0);
+        }
+        try {
+            if (name != null && ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.log(Level.WARNING, "Could not unregister metrics from JMX", e);
+        }
+    }
+
+    // Prometheus text format; histograms are written as summaries.
+    String scrape() {
+        StringBuilder text = new StringBuilder(4096);
+        for (Map.Entry<String, Supplier<Number>> value : values.entrySet()) {
+            text.append(PREFIX).append(value.getKey()).append(' ').append(value.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String metric = PREFIX + entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            text.append(metric).append("_max ").append(histogram.getMax()).append('\n');
+            text.append("# TYPE ").append(metric).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                text.append(metric).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.getValueAtPercentile(quantile * 100)).append('\n');
+            }
+            text.append(metric).append("_sum ").append(histogram.getSum()).append('\n');
+            text.append(metric).append("_count ").append(histogram.getTotalCount()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // JMX attributes: every counter and gauge, and per histogram its count, mean, max and p50 to p99.9.
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<Number> value = values.get(attribute);
+        if (value != null) {
+            return value.get().doubleValue();
+        }
+        int separator = attribute.lastIndexOf('_');
+        LatencyHistogram histogram = separator > 0 ? histograms.get(attribute.substring(0, separator)) : null;
+        if (histogram != null) {
+            switch (attribute.substring(separator + 1)) {
+                case "count": return (double) histogram.getTotalCount();
+                case "mean": return histogram.getMean();
+                case "max": return (double) histogram.getMax();
+                case "p50": return (double) histogram.getValueAtPercentile(50);
+                case "p90": return (double) histogram.getValueAtPercentile(90);
+                case "p99": return (double) histogram.getValueAtPercentile(99);
+                case "p999": return (double) histogram.getValueAtPercentile(99.9);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the interface asks
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String value : values.keySet()) {
+            attributes.add(new MBeanAttributeInfo(value, "java.lang.Double", value, true, false, false));
+        }
+        for (String histogram : histograms.keySet()) {
+            for (String statistic : new String[] {"count", "mean", "max", "p50", "p90", "p99", "p999"}) {
+                String attribute = histogram + "_" + statistic;
+                attributes.add(new MBeanAttributeInfo(attribute, "java.lang.Double", attribute, true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Zebrachat server metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+}
@@ -0,0 +1,172 @@
+package zebrachat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import zebrachat.protocol.LoginRequest;
+
+public class NioConnection extends Connection {
+    private final NioEventLoop loop;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeRequested;
+    private boolean loggingIn;
+    private SelectionKey key;
+    // The batch being written; frames from batchStart on have not been fully written yet.
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+    private int batchStart;
+    private int batchEnd;
+
+    NioConnection(SocketChannel channel, ZebraServer server, NioEventLoop loop) throws IOException {
+        super(channel, server);
+        this.loop = loop;
+        channel.configureBlocking(false);
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    void handleRead() {
+        try {
+            int read = fillReadBuffer();
+            Object message;
+            while (!closed.get() && !closeRequested && !loggingIn && (message = nextMessage()) != null) {
+                processMessage(message);
+            }
+            if (read < 0) {
+                disconnect();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error while reading from " + userAddress, e);
+            disconnect();
+        }
+    }
+
+    void handleWrite() {
+        try {
+            while (true) {
+                if (batchStart == batchEnd) {
+                    batchStart = 0;
+                    batchEnd = outbound.drainTo(batch, FLUSH_BYTES);
+                    if (batchEnd == 0) {
+                        break;
+                    }
+                }
+                long start = System.nanoTime();
+                long written = channel.write(batch, batchStart, batchEnd - batchStart);
+                ZebraServer.metrics.writeLatency.record(Metrics.micros(start));
+                ZebraServer.metrics.bytesWritten.add(written);
+                int completed = batchStart;
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart++] = null;
+                }
+                ZebraServer.metrics.framesWritten.add(batchStart - completed);
+                if (batchStart < batchEnd) {
+                    return;
+                }
+            }
+            if (closeRequested) {
+                close();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+            if (!outbound.isEmpty()) {
+                scheduleWrite();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error while writing to " + userAddress, e);
+            disconnect();
+        }
+    }
+
+    @Override
+    void frameQueued() {
+        scheduleWrite();
+    }
+
+    @Override
+    void evict() {
+        loop.execute(this::disconnect);
+    }
+
+    // Frames queued while a write is scheduled join its batch, so waiting out the flush window
+    // before asking for OP_WRITE lets a burst go out in one write.
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            Runnable enableWrite = () -> {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            };
+            if (FLUSH_WINDOW_NANOS > 0 && !closeRequested) {
+                loop.schedule(enableWrite, FLUSH_WINDOW_NANOS);
+            } else {
+                loop.execute(enableWrite);
+            }
+        }
+    }
+
+    // The handshake may wait for admission and check passwords, so it runs off the event loop.
+    // Reading is suspended until it completes, so frames sent right after the login request
+    // are processed only once the user has joined.
+    @Override
+    void handleLogin(LoginRequest request) {
+        loggingIn = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        server.getHandshakeExecutor().execute(() -> {
+            boolean success = server.admitAndLogin(this, request);
+            loop.execute(() -> finishLogin(success));
+        });
+    }
+
+    private void finishLogin(boolean success) {
+        loggingIn = false;
+        if (closed.get()) {
+            server.processUserLeft(this);
+        } else if (!success) {
+            closeAfterFlush();
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            handleRead();
+        }
+    }
+
+    @Override
+    void closeAfterFlush() {
+        closeRequested = true;
+        loop.execute(() -> {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        });
+    }
+
+    void disconnect() {
+        if (!closed.get()) {
+            server.processUserLeft(this);
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            log.fine(() -> "Closing connection to " + userAddress);
+            key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING,"IOException while closing socket: ", e);
+        }
+        outbound.finish();
+        outbound.clear();
+    }
+}
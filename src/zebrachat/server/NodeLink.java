@@ -0,0 +1,96 @@
+package zebrachat.server;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.MessageDecoder;
+import zebrachat.protocol.MessageEncoder;
+
+// A TCP connection between two cluster nodes. It uses the same framing as client connections;
+// a dedicated thread writes queued frames so that senders never block on the socket.
+class NodeLink implements Closeable {
+    private static Logger log = ZebraServer.log;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final OutboundQueue outbound = new OutboundQueue(QUEUE_CAPACITY, SlowConsumerPolicy.DISCONNECT);
+    private final String name;
+
+    NodeLink(SocketChannel channel, String name) throws IOException {
+        this.channel = channel;
+        this.name = name;
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        Thread.ofVirtual().name("zebrachat-link-writer").start(this::writeFrames);
+    }
+
+    // A node that falls this far behind is disconnected; it catches up from the hub's log on reconnect.
+    void send(ByteBuffer frame) {
+        if (!outbound.offer(frame)) {
+            log.warning("Cluster link to " + name + " is too slow - disconnecting");
+            close();
+        }
+    }
+
+    void send(Object message) {
+        send(MessageEncoder.encode(message));
+    }
+
+    ByteBuffer readFrame() throws IOException {
+        return MessageDecoder.readFrame(in);
+    }
+
+    DataInputStream input() {
+        return in;
+    }
+
+    private void writeFrames() {
+        ByteBuffer[] batch = new ByteBuffer[Connection.MAX_BATCH_FRAMES];
+        try {
+            int count;
+            while ((count = outbound.takeBatch(batch, Connection.FLUSH_BYTES, 0)) > 0) {
+                while (batch[count - 1].hasRemaining()) {
+                    channel.write(batch, 0, count);
+                }
+                Arrays.fill(batch, 0, count, null);
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                log.log(Level.WARNING, "Error while writing to cluster node " + name, e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    void closeAfterFlush() {
+        outbound.finish();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public void close() {
+        outbound.finish();
+        outbound.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error while closing cluster link to " + name, e);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package zebrachat.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class OutboundQueue {
+    private static final int MAX_COALESCED_BYTES = 1 << 20;
+
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private int capacity;
+    private SlowConsumerPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean finished;
+    private int queuedBytes;
+    private int highWaterMark;
+    private long droppedFrames;
+
+    OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Applies to the next offer; frames already queued beyond a lowered capacity are dropped or
+    // coalesced by it, or get the consumer disconnected, according to the policy.
+    void resize(int capacity, SlowConsumerPolicy policy) {
+        lock.lock();
+        try {
+            this.capacity = capacity;
+            this.policy = policy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns false if the queue is full and the policy says the consumer has to be disconnected.
+    boolean offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (finished) {
+                return true;
+            }
+            if (frames.size() >= capacity && !makeRoom()) {
+                return false;
+            }
+            frames.addLast(frame);
+            queuedBytes += frame.remaining();
+            highWaterMark = Math.max(highWaterMark, frames.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean makeRoom() {
+        switch (policy) {
+            case DROP_OLDEST:
+                while (frames.size() >= capacity && !frames.isEmpty()) {
+                    queuedBytes -= frames.removeFirst().remaining();
+                    droppedFrames++;
+                }
+                return true;
+            case COALESCE:
+                return coalesce();
+            default:
+                return false;
+        }
+    }
+
+    private boolean coalesce() {
+        int total = 0;
+        for (ByteBuffer frame : frames) {
+            total += frame.remaining();
+        }
+        if (total > MAX_COALESCED_BYTES) {
+            return false;
+        }
+        ByteBuffer merged = ByteBuffer.allocate(total);
+        for (ByteBuffer frame : frames) {
+            merged.put(frame);
+        }
+        frames.clear();
+        frames.addLast(merged.flip());
+        return true;
+    }
+
+    // Moves queued frames into batch, oldest first, until it is full or the next frame would take
+    // it past maxBytes (a single larger frame is still moved). Returns the number of frames moved.
+    int drainTo(ByteBuffer[] batch, int maxBytes) {
+        lock.lock();
+        try {
+            return drain(batch, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until a frame is available, then gives more frames up to windowNanos to arrive
+    // before draining them like drainTo. Returns 0 once the queue is finished and drained.
+    int takeBatch(ByteBuffer[] batch, int maxBytes, long windowNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !finished) {
+                notEmpty.await();
+            }
+            long remaining = windowNanos;
+            while (remaining > 0 && !finished && queuedBytes < maxBytes && frames.size() < batch.length) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return drain(batch, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drain(ByteBuffer[] batch, int maxBytes) {
+        int count = 0;
+        int bytes = 0;
+        while (count < batch.length && !frames.isEmpty()) {
+            int length = frames.peekFirst().remaining();
+            if (count > 0 && bytes + length > maxBytes) {
+                break;
+            }
+            batch[count++] = frames.pollFirst();
+            bytes += length;
+        }
+        queuedBytes -= bytes;
+        return count;
+    }
+
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            frames.clear();
+            queuedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getHighWaterMark() {
+        lock.lock();
+        try {
+            return highWaterMark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
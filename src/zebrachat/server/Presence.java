@@ -0,0 +1,128 @@
+package zebrachat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.MessageEncoder;
+import zebrachat.protocol.Roster;
+import zebrachat.protocol.UserStatus;
+
+// Who is logged in to this node and what they are up to. Everything runs on one worker thread,
+// which also owns the maps. Changes are collected rather than sent one by one: once per interval
+// the users who changed are encoded into a single delta frame that every user gets a copy of, so
+// presence traffic grows with the number of users who changed, not with changes times users.
+// A user flapping within an interval costs one entry in one delta. Users who joined within the
+// interval get a snapshot instead, encoded once for all of them and already holding the changes,
+// so nobody is told about its own login.
+class Presence implements Closeable {
+    private static Logger log = ZebraServer.log;
+
+    private final ScheduledExecutorService worker =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("zebrachat-presence").factory());
+    private final Map<String, UserStatus> roster = new HashMap<>();
+    private final Map<String, Connection> members = new HashMap<>();
+    // Users whose status changed since the last delta, null for those who left.
+    private Map<String, UserStatus> changes = new HashMap<>();
+    // Members who have not had their snapshot yet.
+    private final Set<Connection> joined = new HashSet<>();
+
+    Presence(long intervalMillis) {
+        // A failing run would cancel the schedule, so it is guarded like every other task.
+        worker.scheduleAtFixedRate(guarded(this::sendChanges), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void execute(Runnable task) {
+        worker.execute(guarded(task));
+    }
+
+    private static Runnable guarded(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Unexpected presence error", e);
+            }
+        };
+    }
+
+    // The new user gets a snapshot including itself at the end of the interval, when the others
+    // learn about it from the delta. Joining always adds a change, so that end is never skipped.
+    void join(Connection connection) {
+        String username = connection.getUsername();
+        execute(() -> {
+            members.put(username, connection);
+            roster.put(username, UserStatus.NOTHING);
+            changes.put(username, UserStatus.NOTHING);
+            joined.add(connection);
+        });
+    }
+
+    void setStatus(Connection connection, UserStatus status) {
+        String username = connection.getUsername();
+        execute(() -> {
+            if (members.get(username) == connection && roster.put(username, status) != status) {
+                changes.put(username, status);
+            }
+        });
+    }
+
+    void leave(Connection connection) {
+        String username = connection.getUsername();
+        execute(() -> {
+            joined.remove(connection);
+            if (members.remove(username, connection)) {
+                roster.remove(username);
+                changes.put(username, null);
+            }
+        });
+    }
+
+    private void sendChanges() {
+        if (changes.isEmpty()) {
+            return;
+        }
+        List<ByteBuffer> delta = MessageEncoder.encodeFrames(new Roster(false, changes));
+        ZebraServer.metrics.presenceChanges.add(changes.size());
+        changes = new HashMap<>();
+        for (Connection member : members.values()) {
+            if (!joined.contains(member)) {
+                for (ByteBuffer frame : delta) {
+                    send(member, frame.duplicate());
+                }
+            }
+        }
+        if (!joined.isEmpty()) {
+            List<ByteBuffer> snapshot = MessageEncoder.encodeFrames(new Roster(true, roster));
+            for (Connection member : joined) {
+                for (ByteBuffer frame : snapshot) {
+                    send(member, frame.duplicate());
+                }
+            }
+            joined.clear();
+        }
+    }
+
+    private void send(Connection connection, ByteBuffer frame) {
+        try {
+            connection.send(frame);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error while sending presence to " + connection.getUsername(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        worker.shutdown();
+    }
+}
@@ -0,0 +1,9 @@
+package zebrachat.server;
+
+// The usernames logged in anywhere in the cluster.
+interface PresenceRegistry {
+    // Returns false if the username is logged in on another node or the cluster cannot be asked.
+    boolean claim(String username);
+
+    void release(String username);
+}
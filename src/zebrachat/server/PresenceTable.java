@@ -0,0 +1,34 @@
+package zebrachat.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Which node each logged-in username belongs to. Owners are compared by identity: the hub uses
+// the link a claim came in on, so claims from a dropped link can be released all at once
+// without touching the ones its replacement makes.
+class PresenceTable implements PresenceRegistry {
+    private final ConcurrentMap<String, Object> owners = new ConcurrentHashMap<>();
+    private final Object localOwner = new Object();
+
+    @Override
+    public boolean claim(String username) {
+        return claim(username, localOwner);
+    }
+
+    @Override
+    public void release(String username) {
+        release(username, localOwner);
+    }
+
+    boolean claim(String username, Object owner) {
+        return owners.putIfAbsent(username, owner) == null;
+    }
+
+    void release(String username, Object owner) {
+        owners.remove(username, owner);
+    }
+
+    void releaseAll(Object owner) {
+        owners.values().removeIf(o -> o == owner);
+    }
+}
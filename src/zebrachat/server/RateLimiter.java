@@ -0,0 +1,67 @@
+package zebrachat.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// A token bucket per key, e.g. per username or per address, created on first use. Connections
+// acquire their buckets once at login, keeping the map off the message path, and release them when
+// they leave. A bucket that nobody holds and that is full is no different from a new one, so such
+// buckets are dropped whenever the map has doubled in size; buckets still held are kept, or two
+// connections of one address could end up drawing from different buckets.
+class RateLimiter<K> {
+    private static final int MINIMUM_SWEEP_SIZE = 1024;
+
+    private final int perSecond;
+    private final int burst;
+    // Holder counts are only changed inside compute calls, which lock the key.
+    private final ConcurrentMap<K, Entry> buckets = new ConcurrentHashMap<>();
+    private volatile int sweepSize = MINIMUM_SWEEP_SIZE;
+
+    RateLimiter(int perSecond, int burst) {
+        this.perSecond = perSecond;
+        this.burst = burst;
+    }
+
+    TokenBucket acquire(K key) {
+        if (perSecond <= 0) {
+            return TokenBucket.UNLIMITED;
+        }
+        if (buckets.size() > sweepSize) {
+            sweep();
+        }
+        return buckets.compute(key, (k, entry) -> {
+            if (entry == null) {
+                entry = new Entry(new TokenBucket(perSecond, burst));
+            }
+            entry.holders++;
+            return entry;
+        }).bucket;
+    }
+
+    // Once for every acquire.
+    void release(K key) {
+        if (perSecond <= 0) {
+            return;
+        }
+        buckets.computeIfPresent(key, (k, entry) -> {
+            entry.holders--;
+            return entry;
+        });
+    }
+
+    private void sweep() {
+        for (K key : buckets.keySet()) {
+            buckets.computeIfPresent(key, (k, entry) -> entry.holders <= 0 && entry.bucket.isFull() ? null : entry);
+        }
+        sweepSize = Math.max(MINIMUM_SWEEP_SIZE, 2 * buckets.size());
+    }
+
+    private static final class Entry {
+        final TokenBucket bucket;
+        int holders;
+
+        Entry(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package zebrachat.server;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+// Keeps the most recent records in memory instead of writing them anywhere. Publishing is one slot
+// write, so it can sit on hot paths; records are only formatted when the ring is dumped. Records
+// are structured: the message is an event name and the parameters are alternating keys and values.
+class RingBufferHandler extends Handler {
+    private final AtomicReferenceArray<LogRecord> slots;
+    private final AtomicLong next = new AtomicLong();
+
+    RingBufferHandler(int capacity) {
+        this.slots = new AtomicReferenceArray<>(Math.max(capacity, 1));
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (isLoggable(record)) {
+            slots.set((int) (next.getAndIncrement() % slots.length()), record);
+        }
+    }
+
+    // One line per record, oldest first: time, thread id, event and key=value pairs.
+    String dump() {
+        List<LogRecord> records = new ArrayList<>(slots.length());
+        for (int i = 0; i < slots.length(); i++) {
+            LogRecord record = slots.get(i);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        records.sort(Comparator.comparingLong(LogRecord::getSequenceNumber));
+        StringBuilder text = new StringBuilder(records.size() * 100);
+        for (LogRecord record : records) {
+            text.append(Instant.ofEpochMilli(record.getMillis())).append(" [").append(record.getLongThreadID())
+                    .append("] ").append(record.getMessage());
+            Object[] fields = record.getParameters();
+            for (int i = 0; fields != null && i + 1 < fields.length; i += 2) {
+                text.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
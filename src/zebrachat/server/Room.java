@@ -0,0 +1,113 @@
+package zebrachat.server;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.ChatMessage;
+
+// A named channel with its own members and history. Everything that changes either one runs on
+// the room's broadcast worker, so members see the room's messages in one order without locking.
+class Room {
+    private static Logger log = ZebraServer.log;
+
+    private final String name;
+    private final MessageStore history;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final Executor worker;
+    private final Set<Connection> members = ConcurrentHashMap.newKeySet();
+    // Counted as users join and leave, ahead of the member set, so that a room cannot be
+    // reclaimed between a user deciding to join it and the join running on the worker.
+    private int occupants;
+    private boolean reclaimed;
+    private volatile long lastActive = System.currentTimeMillis();
+
+    Room(String name, MessageStore history, Executor worker) {
+        this.name = name;
+        this.history = history;
+        this.worker = worker;
+    }
+
+    void execute(Runnable task) {
+        worker.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Unexpected error in room " + name, e);
+            }
+        });
+    }
+
+    // Membership changes are made on the broadcast worker; the set may be read from anywhere.
+    void addMember(Connection connection) {
+        members.add(connection);
+    }
+
+    void removeMember(Connection connection) {
+        members.remove(connection);
+    }
+
+    Set<Connection> getMembers() {
+        return members;
+    }
+
+    // Fails once the room has been reclaimed; it is then no longer in the registry.
+    synchronized boolean occupy() {
+        if (reclaimed) {
+            return false;
+        }
+        occupants++;
+        return true;
+    }
+
+    synchronized void vacate() {
+        occupants--;
+        lastActive = System.currentTimeMillis();
+    }
+
+    synchronized boolean isOccupied() {
+        return occupants > 0;
+    }
+
+    synchronized boolean reclaim() {
+        if (occupants > 0) {
+            return false;
+        }
+        reclaimed = true;
+        return true;
+    }
+
+    long getLastActive() {
+        return lastActive;
+    }
+
+    // Stores a sequenced message and indexes it for search, on the broadcast worker.
+    void append(ChatMessage message, ByteBuffer frame) {
+        history.append(message.getId(), frame);
+        searchIndex.add(history.nextPosition() - 1, message);
+        searchIndex.evictBefore(history.firstPosition());
+        // The message's own time, so that rooms indexed from the log at startup keep their order.
+        lastActive = SearchIndex.epochMillis(message.getReceiptTime(), lastActive);
+    }
+
+    MessageStore getHistory() {
+        return history;
+    }
+
+    // Only to be used on the broadcast worker.
+    SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
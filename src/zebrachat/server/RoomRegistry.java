@@ -0,0 +1,109 @@
+package zebrachat.server;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import zebrachat.protocol.Protocol;
+
+// Rooms by name. Each room is pinned to one of a fixed set of single-threaded broadcast
+// workers by the hash of its name, so a busy room only ever occupies one core and rooms on
+// other workers are not delayed by its fan-out.
+// At most maximumRooms rooms are kept. Rooms nobody is in make way for new ones: first those
+// that retain no history, then the least recently active. The default room is always kept.
+class RoomRegistry implements Closeable {
+    private static final Pattern ROOM_NAME = Pattern.compile("[\\p{L}\\p{N}_-]{1,32}");
+
+    // Changed only by create, under the registry's lock.
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final int maximumRooms;
+    private final ExecutorService[] workers;
+    private final Supplier<MessageStore> historyFactory;
+
+    RoomRegistry(int workerThreads, int maximumRooms, Supplier<MessageStore> historyFactory) {
+        this.maximumRooms = maximumRooms;
+        this.historyFactory = historyFactory;
+        this.workers = new ExecutorService[Math.max(1, workerThreads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = Executors.newSingleThreadExecutor(
+                    Thread.ofPlatform().name("zebrachat-broadcast-" + i).factory());
+        }
+    }
+
+    static boolean isValidName(String name) {
+        return name != null && ROOM_NAME.matcher(name).matches();
+    }
+
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    // Returns null if the room does not exist yet and every room there is has members.
+    Room getOrCreate(String name) {
+        Room room = rooms.get(name);
+        return room != null ? room : create(name);
+    }
+
+    // Returns the room with one more occupant, who has to leave it again, or null as getOrCreate.
+    Room enter(String name) {
+        while (true) {
+            Room room = getOrCreate(name);
+            if (room == null || room.occupy()) {
+                return room;
+            }
+            // Reclaimed in the meantime; the next attempt creates it again.
+        }
+    }
+
+    private synchronized Room create(String name) {
+        Room room = rooms.get(name);
+        if (room != null) {
+            return room;
+        }
+        while (rooms.size() >= maximumRooms) {
+            Room idle = leastUsedIdleRoom();
+            if (idle == null) {
+                return null;
+            }
+            if (idle.reclaim()) {
+                rooms.remove(idle.getName());
+            }
+        }
+        room = new Room(name, historyFactory.get(), workers[Math.floorMod(name.hashCode(), workers.length)]);
+        rooms.put(name, room);
+        return room;
+    }
+
+    private Room leastUsedIdleRoom() {
+        Room candidate = null;
+        for (Room room : rooms.values()) {
+            if (room.isOccupied() || room.getName().equals(Protocol.DEFAULT_ROOM)) {
+                continue;
+            }
+            MessageStore history = room.getHistory();
+            if (history.firstPosition() == history.nextPosition()) {
+                return room;
+            }
+            if (candidate == null || room.getLastActive() < candidate.getLastActive()) {
+                candidate = room;
+            }
+        }
+        return candidate;
+    }
+
+    Collection<Room> rooms() {
+        return rooms.values();
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+    }
+}
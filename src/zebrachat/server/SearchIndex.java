@@ -0,0 +1,254 @@
+package zebrachat.server;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+
+import zebrachat.protocol.ChatMessage;
+
+// An inverted index over one room's messages, by word and by sender, so that searches never read
+// the messages themselves. Messages are identified by their position in the room's MessageStore
+// and grouped into segments of up to 64k positions. Each segment maps words and senders to
+// posting lists of positions, delta-encoded as varints, so a word used in consecutive messages
+// costs about a byte per message. Searches visit segments newest first and stop once they have
+// enough results; segments whose messages have all left the store are dropped.
+//
+// Only the room's broadcast worker adds to or searches the index, so it needs no locking.
+class SearchIndex {
+    private static final int SEGMENT_SIZE = 1 << 16;
+    private static final int MAXIMUM_TERM_LENGTH = 64;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long lastTime = Long.MIN_VALUE;
+
+    void add(long position, ChatMessage message) {
+        Segment segment = segments.peekLast();
+        if (segment == null || position - segment.base >= SEGMENT_SIZE) {
+            segment = new Segment(position);
+            segments.addLast(segment);
+        }
+        // Kept from going backwards, so that time ranges can be found by bisection.
+        lastTime = Math.max(lastTime, epochMillis(message.getReceiptTime(), lastTime));
+        segment.add((int) (position - segment.base), lastTime, message.getUsername(), terms(message.getText()));
+    }
+
+    void evictBefore(long firstPosition) {
+        while (!segments.isEmpty() && segments.peekFirst().end() <= firstPosition) {
+            segments.removeFirst();
+        }
+    }
+
+    // Positions before endPosition of the messages containing all terms, sent by username unless
+    // that is null, and received within [fromMillis, toMillis]; newest first, at most limit of them.
+    long[] search(List<String> terms, String username, long fromMillis, long toMillis, long endPosition, int limit) {
+        Set<String> distinct = new LinkedHashSet<>(terms);
+        long[] found = new long[limit];
+        int count = 0;
+        Iterator<Segment> newestFirst = segments.descendingIterator();
+        while (count < limit && newestFirst.hasNext()) {
+            Segment segment = newestFirst.next();
+            if (segment.size > 0 && segment.times[segment.size - 1] < fromMillis) {
+                break;
+            }
+            count = segment.search(distinct, username, fromMillis, toMillis, endPosition, found, count);
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    // Lower-cased runs of letters and digits; longer words than anyone searches for are left out.
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) {
+            return terms;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        int i = 0;
+        while (i <= lower.length()) {
+            int c = i < lower.length() ? lower.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                if (i - start <= MAXIMUM_TERM_LENGTH) {
+                    terms.add(lower.substring(start, i));
+                }
+                start = -1;
+            }
+            i += Character.charCount(c);
+        }
+        return terms;
+    }
+
+    static long epochMillis(LocalDateTime time, long absent) {
+        return time == null ? absent : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static final class Segment {
+        final long base;
+        // Receipt time by position within the segment, never decreasing.
+        long[] times = new long[1024];
+        int size;
+        final Map<String, Postings> words = new HashMap<>();
+        final Map<String, Postings> senders = new HashMap<>();
+
+        Segment(long base) {
+            this.base = base;
+        }
+
+        long end() {
+            return base + size;
+        }
+
+        void add(int doc, long time, String username, List<String> terms) {
+            if (doc >= times.length) {
+                times = Arrays.copyOf(times, Math.min(SEGMENT_SIZE, Math.max(doc + 1, times.length * 2)));
+            }
+            while (size <= doc) {
+                times[size++] = time;
+            }
+            for (String term : terms) {
+                words.computeIfAbsent(term, t -> new Postings()).add(doc);
+            }
+            if (username != null) {
+                senders.computeIfAbsent(username, u -> new Postings()).add(doc);
+            }
+        }
+
+        int search(Set<String> terms, String username, long fromMillis, long toMillis, long endPosition,
+                long[] found, int count) {
+            int from = fromMillis == Long.MIN_VALUE ? 0 : firstAfter(fromMillis - 1);
+            int to = (int) Math.min(firstAfter(toMillis), Math.max(0, endPosition - base));
+            if (from >= to) {
+                return count;
+            }
+            if (terms.isEmpty() && username == null) {
+                for (int doc = to - 1; doc >= from && count < found.length; doc--) {
+                    found[count++] = base + doc;
+                }
+                return count;
+            }
+
+            List<Postings> lists = new ArrayList<>(terms.size() + 1);
+            for (String term : terms) {
+                Postings postings = words.get(term);
+                if (postings == null) {
+                    return count;
+                }
+                lists.add(postings);
+            }
+            if (username != null) {
+                Postings postings = senders.get(username);
+                if (postings == null) {
+                    return count;
+                }
+                lists.add(postings);
+            }
+            // Intersecting starts from the rarest list, so the others are only checked against few candidates.
+            lists.sort(Comparator.comparingInt(postings -> postings.count));
+            int[] candidates = new int[lists.get(0).count];
+            int matches = lists.get(0).decode(from, to, candidates);
+            for (int i = 1; i < lists.size() && matches > 0; i++) {
+                matches = lists.get(i).retain(candidates, matches);
+            }
+            for (int i = matches - 1; i >= 0 && count < found.length; i--) {
+                found[count++] = base + candidates[i];
+            }
+            return count;
+        }
+
+        // The first position within the segment received after the given time.
+        private int firstAfter(long millis) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] > millis) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    // Ascending positions within a segment, each stored as the varint difference to the previous one.
+    private static final class Postings {
+        private byte[] data = new byte[4];
+        private int length;
+        private int count;
+        private int last = -1;
+
+        void add(int doc) {
+            if (doc == last) {
+                // The word occurs more than once in the message.
+                return;
+            }
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int delta = doc - last;
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = doc;
+            count++;
+        }
+
+        // Writes the positions within [from, to) to docs, ascending, and returns how many there are.
+        int decode(int from, int to, int[] docs) {
+            int n = 0;
+            int doc = -1;
+            int i = 0;
+            while (i < length) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[i++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc += delta;
+                if (doc >= to) {
+                    break;
+                }
+                if (doc >= from) {
+                    docs[n++] = doc;
+                }
+            }
+            return n;
+        }
+
+        // Keeps those of the first n ascending candidates that are in this list and returns how many.
+        int retain(int[] candidates, int n) {
+            int kept = 0;
+            int doc = -1;
+            int i = 0;
+            for (int c = 0; c < n; c++) {
+                int candidate = candidates[c];
+                while (doc < candidate && i < length) {
+                    int delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data[i++];
+                        delta |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    doc += delta;
+                }
+                if (doc == candidate) {
+                    candidates[kept++] = candidate;
+                } else if (doc < candidate) {
+                    break;
+                }
+            }
+            return kept;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package zebrachat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.ChatMessage;
+import zebrachat.protocol.MessageEncoder;
+
+// Assigns message ids and persists the encoded frames in id order. In a cluster only the hub
+// sequences; the other nodes persist the frames they receive from it under the hub's ids.
+// Callers that have to act in id order, like relaying to other nodes, synchronize on the
+// sequencer around the call.
+class Sequencer implements Closeable {
+    private static Logger log = ZebraServer.log;
+
+    private volatile HistoryLog historyLog;
+    private long nextId = 1;
+    private LocalDateTime lastReceiptTime = LocalDateTime.MIN;
+
+    synchronized void open(HistoryLog historyLog) {
+        this.historyLog = historyLog;
+        this.nextId = historyLog.nextId();
+    }
+
+    HistoryLog getLog() {
+        return historyLog;
+    }
+
+    // Exclusive upper bound: the id the next message will get.
+    synchronized long nextId() {
+        return nextId;
+    }
+
+    // The receipt time is stamped here, and never goes back, so that it rises with the id: history
+    // is searched by time on the assumption that a room's messages are stored in time order.
+    synchronized ByteBuffer sequence(ChatMessage message) {
+        LocalDateTime now = LocalDateTime.now();
+        lastReceiptTime = now.isAfter(lastReceiptTime) ? now : lastReceiptTime;
+        message.setReceiptTime(lastReceiptTime);
+        message.setId(nextId);
+        return persist(nextId, MessageEncoder.encode(message).asReadOnlyBuffer());
+    }
+
+    // Returns the frame to send in place of the given one, or null if a message with this id
+    // has already been persisted (as happens when the hub replays history to a reconnecting node).
+    synchronized ByteBuffer persist(long id, ByteBuffer frame) {
+        if (id < nextId) {
+            return null;
+        }
+        nextId = id + 1;
+        HistoryLog persistent = historyLog;
+        if (persistent == null) {
+            return frame;
+        }
+        try {
+            persistent.skipTo(id);
+            return persistent.append(frame);
+        } catch (ProtocolException e) {
+            // Refused before anything was written; the id is left as a gap, like a skipped one.
+            log.log(Level.WARNING, "Not persisting message " + id, e);
+            return frame;
+        } catch (IOException e) {
+            // Log positions double as message ids, so a log that missed a message
+            // cannot be appended to any more.
+            log.log(Level.SEVERE, "Error while persisting message - disabling history log", e);
+            historyLog = null;
+            persistent.close();
+            return frame;
+        }
+    }
+
+    @Override
+    public void close() {
+        HistoryLog persistent = historyLog;
+        if (persistent != null) {
+            persistent.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package zebrachat.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// The settings a running server picks up when configuration.xml changes. Each reload builds
+// a new instance and publishes it whole, so nobody ever sees half of an update.
+final class ServerLimits {
+    static final Set<String> NAMES = new HashSet<>(Arrays.asList("maximumConnections", "retainedMessagesNumber",
+            "outboundQueueSize", "slowConsumerPolicy", "historyPageSize", "handshakesPerSecond",
+            "historyRetentionSize", "historyRetentionHours", "traceSampleRate"));
+
+    final int maximumConnections;
+    final int retainedMessagesNumber;
+    final int outboundQueueSize;
+    final SlowConsumerPolicy slowConsumerPolicy;
+    final int historyPageSize;
+    final int handshakesPerSecond;
+    final long historyRetentionSize;
+    final long historyRetentionHours;
+    final int traceSampleRate;
+
+    ServerLimits(Map<String, String> values) {
+        maximumConnections = Integer.parseInt(required(values, "maximumConnections"));
+        retainedMessagesNumber = Integer.parseInt(required(values, "retainedMessagesNumber"));
+        outboundQueueSize = Integer.parseInt(values.getOrDefault("outboundQueueSize", "256"));
+        slowConsumerPolicy =
+                SlowConsumerPolicy.valueOf(values.getOrDefault("slowConsumerPolicy", "drop_oldest").toUpperCase());
+        historyPageSize = Integer.parseInt(values.getOrDefault("historyPageSize", "50"));
+        handshakesPerSecond = Integer.parseInt(values.getOrDefault("handshakesPerSecond", "500"));
+        historyRetentionSize = Long.parseLong(values.getOrDefault("historyRetentionSize", "1073741824"));
+        historyRetentionHours = Long.parseLong(values.getOrDefault("historyRetentionHours", "720"));
+        traceSampleRate = Integer.parseInt(values.getOrDefault("traceSampleRate", "0"));
+        if (maximumConnections < 0 || retainedMessagesNumber < 0 || outboundQueueSize < 1 || historyPageSize < 1
+                || traceSampleRate < 0) {
+            throw new IllegalArgumentException("Limits out of range: " + this);
+        }
+    }
+
+    static String required(Map<String, String> values, String name) {
+        String value = values.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing <" + name + "> in configuration");
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "maximumConnections=" + maximumConnections + ", retainedMessagesNumber=" + retainedMessagesNumber
+                + ", outboundQueueSize=" + outboundQueueSize + ", slowConsumerPolicy=" + slowConsumerPolicy
+                + ", historyPageSize=" + historyPageSize + ", handshakesPerSecond=" + handshakesPerSecond
+                + ", historyRetentionSize=" + historyRetentionSize + ", historyRetentionHours=" + historyRetentionHours
+                + ", traceSampleRate=" + traceSampleRate;
+    }
+}
@@ -0,0 +1,5 @@
+package zebrachat.server;
+
+public enum ServerMode {
+    THREAD, VIRTUAL, NIO
+}
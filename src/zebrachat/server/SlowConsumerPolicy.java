@@ -0,0 +1,5 @@
+package zebrachat.server;
+
+public enum SlowConsumerPolicy {
+    DROP_OLDEST, DISCONNECT, COALESCE
+}
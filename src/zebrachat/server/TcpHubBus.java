@@ -0,0 +1,193 @@
+package zebrachat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.*;
+
+// The sequencing node of a cluster. The other nodes connect to it and forward what their users
+// post; it sequences those messages together with its own and relays every one of them back to
+// all nodes in id order. It also holds the cluster's username registry.
+//
+// A node that reconnects is sent what it missed, but at most the newest MAXIMUM_REPLAY messages
+// and only what the hub's own history still holds; anything older is skipped, with a warning, and
+// is missing from that node's history.
+//
+// Nodes are trusted with any username and room, so the hub only listens on clusterAddress,
+// loopback unless configured otherwise, and only takes nodes that know the cluster's secret.
+// The secret is sent in the clear: links between hosts belong on a private network.
+class TcpHubBus implements MessageBus {
+    private static Logger log = ZebraServer.log;
+    // Bounds the time the sequencer is held up by one reconnecting node.
+    private static final int MAXIMUM_REPLAY = 32 * 1024;
+
+    private final Sequencer sequencer;
+    private final InetSocketAddress address;
+    private final byte[] secret;
+    private final PresenceTable presence = new PresenceTable();
+    private final Set<NodeLink> links = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel serverChannel;
+    private Subscriber subscriber;
+
+    TcpHubBus(Sequencer sequencer, InetSocketAddress address, String secret) {
+        this.sequencer = sequencer;
+        this.address = address;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void start(Subscriber subscriber) throws IOException {
+        this.subscriber = subscriber;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        Thread.ofPlatform().daemon().name("zebrachat-cluster-accept").start(this::acceptNodes);
+        log.info("Cluster hub listening at " + address);
+    }
+
+    private void acceptNodes() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Thread.ofVirtual().name("zebrachat-cluster-link").start(() -> serve(channel));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Error while accepting cluster node", e);
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        NodeLink link = null;
+        try {
+            link = new NodeLink(channel, String.valueOf(channel.getRemoteAddress()));
+            byte[] preamble = new byte[Protocol.PREAMBLE_LENGTH];
+            link.input().readFully(preamble);
+            if (Protocol.readPreamble(ByteBuffer.wrap(preamble)) != Protocol.VERSION) {
+                throw new ProtocolException("Unsupported cluster protocol version");
+            }
+            Object hello = MessageDecoder.read(link.input());
+            if (!(hello instanceof NodeHello)) {
+                throw new ProtocolException("Expected a node hello, got " + hello);
+            }
+            NodeHello nodeHello = (NodeHello) hello;
+            if (nodeHello.getSecret() == null
+                    || !MessageDigest.isEqual(secret, nodeHello.getSecret().getBytes(StandardCharsets.UTF_8))) {
+                log.warning("Refusing cluster node " + nodeHello.getNodeId() + " from " + link.getName()
+                        + " - wrong cluster secret");
+                link.send(new SystemMessage(SystemMessage.Status.ERROR, "wrong cluster secret"));
+                link.closeAfterFlush();
+                return;
+            }
+            if (!attach(link, nodeHello.getNextId())) {
+                log.severe("Cluster node " + nodeHello.getNodeId() + " has messages the hub does not know about");
+                link.send(new SystemMessage(SystemMessage.Status.ERROR, "node history is ahead of the hub"));
+                link.closeAfterFlush();
+                return;
+            }
+            log.info("Cluster node " + nodeHello.getNodeId() + " connected from " + link.getName());
+            while (true) {
+                handle(link, MessageDecoder.read(link.input()));
+            }
+
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                log.info("Cluster link " + (link != null ? link.getName() : channel) + " closed: " + e);
+            }
+
+        } finally {
+            if (link != null) {
+                links.remove(link);
+                presence.releaseAll(link);
+                link.close();
+            }
+        }
+    }
+
+    // The node gets what it missed and then every new message, without gaps or duplicates,
+    // because both happen under the sequencer's lock.
+    private boolean attach(NodeLink link, long nextId) {
+        synchronized (sequencer) {
+            long next = sequencer.nextId();
+            if (nextId > next) {
+                return false;
+            }
+            HistoryLog history = sequencer.getLog();
+            if (history != null) {
+                long from = Math.max(Math.max(nextId, history.firstId()), next - MAXIMUM_REPLAY);
+                if (from > nextId) {
+                    log.warning("Not replaying messages " + nextId + " to " + (from - 1) + " to node "
+                            + link.getName() + " - the hub replays at most " + MAXIMUM_REPLAY
+                            + " and only what its history still holds");
+                }
+                for (long id = from; id < next; id++) {
+                    ByteBuffer frame = history.frame(id);
+                    if (frame != null) {
+                        link.send(frame.duplicate());
+                    }
+                }
+            }
+            links.add(link);
+            return true;
+        }
+    }
+
+    private void handle(NodeLink link, Object message) {
+        if (message instanceof ChatMessage) {
+            subscriber.submit((ChatMessage) message);
+        } else if (message instanceof UsernameClaim) {
+            UsernameClaim claim = (UsernameClaim) message;
+            if (claim.getAction() == UsernameClaim.Action.CLAIM) {
+                boolean granted = presence.claim(claim.getUsername(), link);
+                link.send(new UsernameClaim(claim.getRequestId(), claim.getUsername(),
+                        granted ? UsernameClaim.Action.GRANTED : UsernameClaim.Action.DENIED));
+            } else if (claim.getAction() == UsernameClaim.Action.RELEASE) {
+                presence.release(claim.getUsername(), link);
+            }
+        } else {
+            log.warning("Unexpected message from cluster node " + link.getName() + ": " + message);
+        }
+    }
+
+    @Override
+    public void publish(ChatMessage message) {
+        ByteBuffer frame;
+        synchronized (sequencer) {
+            frame = sequencer.sequence(message);
+            for (NodeLink link : links) {
+                link.send(frame.duplicate());
+            }
+        }
+        subscriber.deliver(message, frame);
+    }
+
+    @Override
+    public PresenceRegistry presence() {
+        return presence;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error while closing cluster hub", e);
+        }
+        for (NodeLink link : links) {
+            link.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package zebrachat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import zebrachat.protocol.*;
+
+// A cluster node other than the hub. What its users post is forwarded to the hub for sequencing;
+// everything the hub relays is persisted here under the hub's ids and delivered to the local
+// members. Usernames are claimed at the hub, so a user can be logged in on one node only.
+class TcpNodeBus implements MessageBus, PresenceRegistry {
+    private static Logger log = ZebraServer.log;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long CLAIM_TIMEOUT_MILLIS = 5000;
+
+    private final String nodeId;
+    private final String secret;
+    private final Sequencer sequencer;
+    private final InetSocketAddress hub;
+    private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Long, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private volatile NodeLink link;
+    private volatile boolean closed;
+    private Subscriber subscriber;
+    private Thread linkThread;
+
+    TcpNodeBus(String nodeId, String secret, Sequencer sequencer, InetSocketAddress hub) {
+        this.nodeId = nodeId;
+        this.secret = secret;
+        this.sequencer = sequencer;
+        this.hub = hub;
+    }
+
+    @Override
+    public void start(Subscriber subscriber) {
+        this.subscriber = subscriber;
+        linkThread = Thread.ofPlatform().daemon().name("zebrachat-cluster-link").start(this::maintainLink);
+    }
+
+    private void maintainLink() {
+        while (!closed) {
+            NodeLink current = null;
+            try {
+                current = new NodeLink(SocketChannel.open(hub), "hub " + hub);
+                current.send(ByteBuffer.wrap(Protocol.preamble()));
+                current.send(new NodeHello(nodeId, secret, sequencer.nextId()));
+                // The hub forgets a node's users when its link drops. The answers come back with
+                // request id 0; a denial logs the user out here.
+                for (String username : claimed) {
+                    current.send(new UsernameClaim(0, username, UsernameClaim.Action.CLAIM));
+                }
+                link = current;
+                log.info("Connected to cluster hub " + hub);
+                receive(current);
+
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warning("Lost cluster hub " + hub + ": " + e);
+                }
+
+            } finally {
+                link = null;
+                if (current != null) {
+                    current.close();
+                }
+                for (CompletableFuture<Boolean> pending : pendingClaims.values()) {
+                    pending.complete(false);
+                }
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void receive(NodeLink current) throws IOException {
+        while (true) {
+            ByteBuffer frame = current.readFrame();
+            Object message = MessageDecoder.decode(MessageDecoder.nextFrame(frame.duplicate()));
+            if (message instanceof ChatMessage) {
+                ChatMessage chatMessage = (ChatMessage) message;
+                ByteBuffer persisted = sequencer.persist(chatMessage.getId(), frame.asReadOnlyBuffer());
+                if (persisted != null) {
+                    subscriber.deliver(chatMessage, persisted);
+                }
+            } else if (message instanceof UsernameClaim) {
+                UsernameClaim reply = (UsernameClaim) message;
+                boolean granted = reply.getAction() == UsernameClaim.Action.GRANTED;
+                CompletableFuture<Boolean> pending = pendingClaims.remove(reply.getRequestId());
+                if (pending != null) {
+                    pending.complete(granted);
+                } else if (!granted && claimed.remove(reply.getUsername())) {
+                    // A re-claim after reconnecting: the user logged in elsewhere while the hub
+                    // was unreachable, and the hub only lets one node have it.
+                    log.warning(reply.getUsername() + " logged in on another node while the hub was unreachable"
+                            + " - logging it out here");
+                    subscriber.revoke(reply.getUsername());
+                }
+            } else if (message instanceof SystemMessage) {
+                throw new IOException("Rejected by cluster hub: " + ((SystemMessage) message).getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void publish(ChatMessage message) {
+        NodeLink current = link;
+        if (current == null) {
+            log.warning("Cluster hub unreachable - dropping message: " + message);
+            return;
+        }
+        current.send(message);
+    }
+
+    @Override
+    public PresenceRegistry presence() {
+        return this;
+    }
+
+    @Override
+    public boolean claim(String username) {
+        NodeLink current = link;
+        if (current == null) {
+            return false;
+        }
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        pendingClaims.put(requestId, reply);
+        try {
+            current.send(new UsernameClaim(requestId, username, UsernameClaim.Action.CLAIM));
+            boolean granted = reply.get(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (granted) {
+                claimed.add(username);
+            }
+            return granted;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+
+        } catch (ExecutionException | TimeoutException e) {
+            log.warning("Cluster hub did not answer the claim for " + username);
+            return false;
+
+        } finally {
+            pendingClaims.remove(requestId);
+        }
+    }
+
+    @Override
+    public void release(String username) {
+        claimed.remove(username);
+        NodeLink current = link;
+        if (current != null) {
+            current.send(new UsernameClaim(0, username, UsernameClaim.Action.RELEASE));
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        NodeLink current = link;
+        if (current != null) {
+            current.close();
+        }
+        if (linkThread != null) {
+            linkThread.interrupt();
+        }
+    }
+}
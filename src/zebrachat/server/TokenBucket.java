@@ -0,0 +1,43 @@
+package zebrachat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free token bucket. Instead of a token count it keeps the time at which the bucket will be
+// full again (the generic cell rate algorithm): taking a token moves that time one interval later
+// and is refused if it would then lie more than burst intervals ahead. Taking a token is one CAS.
+class TokenBucket {
+    static final TokenBucket UNLIMITED = new TokenBucket(0, 0);
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    // perSecond <= 0 means unlimited.
+    TokenBucket(int perSecond, int burst) {
+        this.intervalNanos = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+        this.burstNanos = Math.max(1, burst) * intervalNanos;
+    }
+
+    boolean tryAcquire() {
+        if (intervalNanos == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // A full bucket behaves exactly like a new one.
+    boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
@@ -0,0 +1,45 @@
+package zebrachat.server;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Sampled per-message tracing. Trace events go to their own logger, which writes to an in-memory
+// ring instead of the console, so even tracing every message costs no I/O; the ring is served next
+// to the metrics at /trace. Messages are sampled by id, so a sampled message is traced at every
+// stage after it has been sequenced, on every node. A node other than the hub publishes messages
+// before they have an id, so it traces them from delivery on. With tracing off, an event costs one
+// volatile read.
+final class Tracing {
+    private static final Logger trace = Logger.getLogger("zebrachat.server.trace");
+    private static final RingBufferHandler ring = new RingBufferHandler(Config.getTraceBufferSize());
+    private static volatile int sampleRate;
+
+    static {
+        trace.setUseParentHandlers(false);
+        trace.addHandler(ring);
+        trace.setLevel(Level.OFF);
+    }
+
+    private Tracing() {
+    }
+
+    // 0 turns tracing off, 1 traces every message and n one in n.
+    static void setSampleRate(int rate) {
+        sampleRate = rate;
+        trace.setLevel(rate > 0 ? Level.FINE : Level.OFF);
+    }
+
+    static boolean sampled(long id) {
+        int rate = sampleRate;
+        return rate > 0 && id > 0 && id % rate == 0;
+    }
+
+    // Records an event with alternating keys and values. Nothing is formatted until the ring is read.
+    static void event(String event, Object... fields) {
+        trace.log(Level.FINE, event, fields);
+    }
+
+    static String dump() {
+        return ring.dump();
+    }
+}
@@ -2,128 +2,432 @@ package zebrachat.server;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import zebrachat.protocol.*;
 
-public class ZebraServer {
+public class ZebraServer implements MessageBus.Subscriber {
 
     private static final int PORT = Config.getPort();
-    private static final int RETAIN_MESSAGES = Config.getRetainedMessagesNumber();
-    private static final int MAXIMUM_CONNECTIONS = Config.getMaximumConnections();
+    private static final ServerMode MODE = Config.getMode();
+    private static final int IO_THREADS = Config.getIoThreads();
+    private static final int MAXIMUM_HISTORY_PAGE_SIZE = 500;
+    private static final int MAXIMUM_RESUME_MESSAGES = 10 * MAXIMUM_HISTORY_PAGE_SIZE;
     static final Logger log = Logger.getLogger("zebrachat.server");
+    static final Metrics metrics = new Metrics();
+
+    private final ConnectionRegistry connections = new ConnectionRegistry(Config.getMaximumConnections());
+    private final Sequencer sequencer = new Sequencer();
+    private MessageBus bus;
+    // Presence only knows this node's users, so in a cluster logins and logouts are also announced
+    // in the default room, which reaches every node.
+    private boolean clustered;
+    private final RoomRegistry rooms =
+            new RoomRegistry(Config.getBroadcastThreads(), Config.getMaximumRooms(), this::newRoomHistory);
+    private Room defaultRoom;
+    private final List<NioEventLoop> eventLoops = new ArrayList<>();
+    private final AdmissionController admission =
+            new AdmissionController(Config.getMaximumConcurrentHandshakes(), Config.getHandshakesPerSecond());
+    // Only the event loops hand handshakes off; blocking connections run theirs on their own thread.
+    private final ExecutorService handshakeExecutor =
+            MODE == ServerMode.NIO ? Executors.newVirtualThreadPerTaskExecutor() : null;
+    private final RateLimiter<String> userRates =
+            new RateLimiter<>(Config.getMessagesPerSecondPerUser(), Config.getMessageBurstPerUser());
+    private final RateLimiter<InetAddress> addressRates =
+            new RateLimiter<>(Config.getMessagesPerSecondPerAddress(), Config.getMessageBurstPerAddress());
+    private final TokenBucket acceptRate =
+            new TokenBucket(Config.getConnectionsPerSecond(), Config.getConnectionBurst());
+    private final Presence presence = new Presence(Config.getPresenceIntervalMillis());
+    private final DirectMessages directMessages = new DirectMessages(connections, Config.getMailboxSize(),
+            Config.getMailboxBytes(), Config.getHeldMessagesPerSender(), TimeUnit.HOURS.toMillis(Config.getMailboxHours()));
+    private FileCredentialStore credentials;
+    private FileWatcher configWatcher;
+
+    private void openHistoryLog() throws IOException {
+        String directory = Config.getHistoryDirectory();
+        if (directory == null) {
+            return;
+        }
+        sequencer.open(new HistoryLog(Paths.get(directory), Config.getHistorySegmentSize(),
+                Config.getHistoryRetentionSize(), TimeUnit.HOURS.toMillis(Config.getHistoryRetentionHours()),
+                Config.getHistoryFsyncInterval()));
+        indexHistory();
+    }
 
-    private final Map<String, Connection> connections = new HashMap<>();
-    //private final Set<zebrachat.server.Connection> connections = new HashSet<>();
-    private final Deque<ChatMessage> lastMessages = new ConcurrentLinkedDeque<>();
+    // Rebuilds every room's index into the log, and its search index, from the frames in the log.
+    private void indexHistory() throws ProtocolException {
+        HistoryLog persistent = sequencer.getLog();
+        for (long id = persistent.firstId(), end = persistent.nextId(); id < end; id++) {
+            ByteBuffer frame = persistent.frame(id);
+            if (frame == null) {
+                continue;
+            }
+            ChatMessage message = (ChatMessage) MessageDecoder.decode(MessageDecoder.nextFrame(frame.duplicate()));
+            Room room = rooms.getOrCreate(roomName(message.getRoom()));
+            if (room != null) {
+                room.append(message, frame);
+            }
+        }
+        log.info("Indexed history of " + rooms.rooms().size() + " rooms");
+    }
 
-    private void run() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Running server at port " + PORT);
-            while (true) {
-                Connection connection = initializeConnection(serverSocket.accept());
-                if(connection == null) {
-                    continue;
-                }
+    private MessageStore newRoomHistory() {
+        HistoryLog persistent = sequencer.getLog();
+        return persistent != null ? new IndexedHistory(persistent) : new MessageHistory(Config.getRetainedMessagesNumber());
+    }
 
-                if(!verifyLogin(connection)) {
-                    connection.close();
-                    continue;
-                }
+    // Applies reloaded limits to what already exists; whatever is created from now on reads them from Config.
+    private void applyLimits(ServerLimits limits) {
+        connections.setMaximumConnections(limits.maximumConnections);
+        admission.setRate(limits.handshakesPerSecond);
+        for (Connection connection : connections.connections()) {
+            connection.resizeOutboundQueue(limits.outboundQueueSize, limits.slowConsumerPolicy);
+        }
+        for (Room room : rooms.rooms()) {
+            if (room.getHistory() instanceof MessageHistory) {
+                MessageHistory history = (MessageHistory) room.getHistory();
+                room.execute(() -> history.resize(limits.retainedMessagesNumber));
+            }
+        }
+        Tracing.setSampleRate(limits.traceSampleRate);
+        HistoryLog persistent = sequencer.getLog();
+        if (persistent != null) {
+            persistent.setRetention(limits.historyRetentionSize, TimeUnit.HOURS.toMillis(limits.historyRetentionHours));
+        }
+    }
 
-                if(!joinChat(connection)) {
-                    connection.close();
-                    continue;
-                }
+    private MessageBus createBus() {
+        InetSocketAddress hub = Config.getClusterHub();
+        if (hub != null) {
+            log.info("Joining cluster as " + Config.getNodeId() + " through hub " + hub);
+            return new TcpNodeBus(Config.getNodeId(), Config.getClusterSecret(), sequencer, hub);
+        } else if (Config.getClusterPort() > 0) {
+            return new TcpHubBus(sequencer, Config.getClusterAddress(), Config.getClusterSecret());
+        }
+        return new LocalMessageBus(sequencer);
+    }
 
-                if(!forwardMessages(connection)) {
-                    connection.close();
-                    continue;
-                }
+    private static String roomName(String room) {
+        return room == null ? Protocol.DEFAULT_ROOM : room;
+    }
 
-                advertiseNewUser(connection);
+    // Everything but the listening socket, so the server can also be driven in-process.
+    void open() throws IOException {
+        credentials = new FileCredentialStore(Paths.get(Config.getCredentialsFile()),
+                Config.getCredentialCacheSize());
+        credentials.watch();
+        configWatcher = Config.watch(this::applyLimits);
+        openHistoryLog();
+        defaultRoom = rooms.getOrCreate(Protocol.DEFAULT_ROOM);
+        bus = createBus();
+        clustered = !(bus instanceof LocalMessageBus);
+        bus.start(this);
+        registerGauges();
+        Tracing.setSampleRate(Config.getLimits().traceSampleRate);
+        metrics.serve("/trace", Tracing::dump);
+        metrics.start(Config.getMetricsPort());
+    }
+
+    // Gauges walk the connections or rooms, which is fine at scrape rate but not on any hot path.
+    private void registerGauges() {
+        metrics.gauge("connections_active", connections::size);
+        metrics.gauge("rooms", () -> rooms.rooms().size());
+        metrics.gauge("direct_messages_held_bytes", directMessages::getHeldBytes);
+        metrics.gauge("queued_frames", () -> {
+            long queued = 0;
+            for (Connection connection : connections.connections()) {
+                queued += connection.getQueueDepth();
+            }
+            return queued;
+        });
+        metrics.gauge("queue_depth_max", () -> {
+            int deepest = 0;
+            for (Connection connection : connections.connections()) {
+                deepest = Math.max(deepest, connection.getQueueDepth());
+            }
+            return deepest;
+        });
+        metrics.gauge("dropped_frames", () -> {
+            long dropped = 0;
+            for (Connection connection : connections.connections()) {
+                dropped += connection.getDroppedFrames();
+            }
+            return dropped;
+        });
+        metrics.gauge("history_messages", () -> {
+            long messages = 0;
+            for (Room room : rooms.rooms()) {
+                messages += room.getHistory().nextPosition() - room.getHistory().firstPosition();
+            }
+            return messages;
+        });
+        metrics.gauge("history_log_records", () -> {
+            HistoryLog persistent = sequencer.getLog();
+            return persistent != null ? persistent.size() : 0;
+        });
+    }
 
-                log.info("Starting connection thread");
-                connection.start();
+    private void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            open();
+            serverChannel.bind(new InetSocketAddress(PORT));
+            System.out.println("Running " + MODE.name().toLowerCase() + " server at port " + PORT);
+            if (MODE == ServerMode.NIO) {
+                acceptNio(serverChannel);
+            } else {
+                acceptBlocking(serverChannel);
             }
 
         } catch (Exception e) {
             log.log(Level.SEVERE, "Unexpected server exception", e);
 
         } finally {
-            for(Connection conn: connections.values()) {
-                conn.close();
-            }
+            close();
         }
     }
 
-    private void advertiseNewUser(Connection connection) {
-        ChatMessage greeting = new ChatMessage(null,
-                connection.getUsername() + " has joined the chat!");
-        greeting.setReceiptTime(LocalDateTime.now());
-        broadcast(greeting);
+    void close() {
+        metrics.stop();
+        for (NioEventLoop loop : eventLoops) {
+            loop.close();
+        }
+        if (handshakeExecutor != null) {
+            handshakeExecutor.shutdownNow();
+        }
+        for (Connection conn : connections.connections()) {
+            conn.close();
+        }
+        rooms.close();
+        presence.close();
+        if (bus != null) {
+            bus.close();
+        }
+        sequencer.close();
+        if (credentials != null) {
+            credentials.close();
+        }
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
     }
 
-    private boolean forwardMessages(Connection connection) {
-        synchronized (lastMessages) {
-            boolean success = false;
-            log.info("Forwarding last messages");
-            try {
-                for (ChatMessage msg : lastMessages) {
-                    connection.sendMessage(msg);
-                }
-                success = true;
+    private void acceptBlocking(ServerSocketChannel serverChannel) throws IOException {
+        ThreadFactory threads = MODE == ServerMode.VIRTUAL
+                ? Thread.ofVirtual().name("zebrachat-connection-", 0).factory()
+                : Thread.ofPlatform().name("zebrachat-connection-", 0).factory();
 
-            } catch (IOException e) {
-                log.log(Level.WARNING, "Error while forwarding messages", e);
-                return false;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            long accepted = System.nanoTime();
+            if (!admitConnection(channel)) {
+                continue;
+            }
+            log.fine(() -> "New client connection requested: " + channel.socket().getInetAddress());
+            BlockingConnection connection = initializeConnection(channel, threads);
+            if(connection == null) {
+                continue;
+            }
+
+            threads.newThread(connection).start();
+            metrics.acceptLatency.record(Metrics.micros(accepted));
+        }
+    }
+
+    private void acceptNio(ServerSocketChannel serverChannel) throws IOException {
+        for (int i = 0; i < IO_THREADS; i++) {
+            NioEventLoop loop = new NioEventLoop(this, "zebrachat-io-" + i);
+            eventLoops.add(loop);
+            loop.start();
+        }
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            long accepted = System.nanoTime();
+            if (!admitConnection(channel)) {
+                continue;
             }
+            log.fine(() -> "New client connection requested: " + channel.socket().getInetAddress());
+            eventLoops.get(next).register(channel, accepted);
+            next = (next + 1) % eventLoops.size();
+        }
+    }
+
+    Room getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    // Connections over the accept rate are closed straight away, before any work is done for them.
+    private boolean admitConnection(SocketChannel channel) {
+        if (acceptRate.tryAcquire()) {
+            metrics.connectionsAccepted.increment();
+            return true;
+        }
+        metrics.connectionsThrottled.increment();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "Error while closing throttled connection", e);
+        }
+        return false;
+    }
+
+    ExecutorService getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
 
+    boolean admitAndLogin(Connection connection, LoginRequest request) {
+        long start = System.nanoTime();
+        try {
+            admission.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        boolean success = false;
+        try {
+            success = login(connection, request);
             return success;
+        } finally {
+            admission.release();
+            (success ? metrics.loginsSucceeded : metrics.loginsFailed).increment();
+            metrics.loginLatency.record(Metrics.micros(start));
+        }
+    }
+
+    private boolean login(Connection connection, LoginRequest request) {
+        if(!verifyLogin(connection, request)) {
+            return false;
+        }
+
+        if(!joinChat(connection, request.getUsername())) {
+            return false;
+        }
+
+        defaultRoom.occupy();
+        enterRoom(connection, defaultRoom, request.getLastSeenId());
+        presence.join(connection);
+        directMessages.open(connection);
+        if (clustered) {
+            broadcast(defaultRoom, notice(connection.getUsername() + " has joined the chat!"));
+        }
+        return true;
+    }
+
+    private static ChatMessage notice(String text) {
+        return new ChatMessage(null, text);
+    }
+
+    // Joining and replaying history run on the room's broadcast worker, so that the new member
+    // sees every message of the room exactly once and in the same order as everyone else.
+    private boolean enterRoom(Connection connection, Room room, long lastSeenId) {
+        if (!connection.addRoom(room)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        room.execute(() -> {
+            if (connection.isInRoom(room)) {
+                room.addMember(connection);
+                forwardMessages(connection, room, lastSeenId);
+                metrics.roomsEntered.increment();
+                metrics.joinLatency.record(Metrics.micros(start));
+            }
+        });
+        return true;
+    }
+
+    void forwardMessages(Connection connection, Room room, long lastSeenId) {
+        MessageStore store = room.getHistory();
+        try {
+            if (canResume(store, lastSeenId)) {
+                log.fine(() -> "Resuming " + room + " after message " + lastSeenId);
+                for (ByteBuffer page : HistoryPager.pagesAfter(room.getName(), store, lastSeenId,
+                        MAXIMUM_HISTORY_PAGE_SIZE)) {
+                    connection.send(page);
+                }
+            } else {
+                log.fine(() -> "Forwarding last messages of " + room);
+                HistoryRequest latest = new HistoryRequest(room.getName(), 0, Config.getHistoryPageSize());
+                connection.send(HistoryPager.page(room.getName(), store, latest, MAXIMUM_HISTORY_PAGE_SIZE));
+            }
+
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error while forwarding messages", e);
         }
     }
 
-    private boolean joinChat(Connection connection) {
+    // A resuming client gets exactly the messages it missed if none of them has been evicted and
+    // there are not too many; everyone else gets the newest page and can scroll back from there.
+    private boolean canResume(MessageStore store, long lastSeenId) {
+        if (lastSeenId <= 0 || lastSeenId >= sequencer.nextId()) {
+            return false;
+        }
+        long first = store.firstPosition();
+        long firstId = store.id(first);
+        if (first > 0 && (firstId < 0 || firstId > lastSeenId)) {
+            return false;
+        }
+        return store.nextPosition() - HistoryPager.positionAfter(store, lastSeenId) <= MAXIMUM_RESUME_MESSAGES;
+    }
+
+    private boolean joinChat(Connection connection, String username) {
         boolean success = false;
+        ConnectionRegistry.Result result = connections.register(username, connection);
         try {
-            if(connections.size() < MAXIMUM_CONNECTIONS) {
+            if(result == ConnectionRegistry.Result.REGISTERED && !bus.presence().claim(username)) {
+                connections.unregister(username, connection);
+                connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "user is already logged in"));
+                success = false;
+
+            } else if(result == ConnectionRegistry.Result.REGISTERED) {
                 SystemMessage message = new SystemMessage(SystemMessage.Status.OK, "permission granted");
                 connection.sendMessage(message);
-                connections.put(connection.getUsername(), connection);
+                // Released again in processUserLeft.
+                connection.limitRate(userRates.acquire(username), addressRates.acquire(connection.getUserAddress()));
+                // Only now, so that a direct message found through the registry cannot overtake the permission.
+                connection.setUsername(username);
                 success = true;
 
+            } else if(result == ConnectionRegistry.Result.DUPLICATE) {
+                connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "user is already logged in"));
+                success = false;
+
             } else {
                 SystemMessage message = new SystemMessage(SystemMessage.Status.ERROR,
                         "maximum number of clients reached");
                 connection.sendMessage(message);
-                log.info("No more chat slots - closing client connection");
+                log.fine("No more chat slots - closing client connection");
                 success= false;
             }
 
         } catch (IOException e) {
             log.log(Level.WARNING, "Error while joining chat", e);
+            connections.unregister(username, connection);
             return false;
         }
 
         return success;
     }
 
-    private boolean verifyLogin(Connection connection) {
-        log.info("Verifying login");
+    private boolean verifyLogin(Connection connection, LoginRequest login) {
         try {
-            LoginRequest login = connection.readLoginRequest();
             String username = login.getUsername();
-            String password = login.getPassword();
-            String correctpw = Config.users.get(username);
 
-            if(connections.containsKey(username)) {
+            if(connections.contains(username)) {
                 connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "user is already logged in"));
                 return false;
-            } else if(!password.equals(correctpw) || !Config.users.containsKey(username)) {
+            } else if(!credentials.verify(username, login.getPassword())) {
                 connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "wrong login"));
                 return false;
             } else {
@@ -131,56 +435,269 @@ public class ZebraServer {
                 return true;
             }
 
-        } catch (IOException | ClassNotFoundException e) {
-            log.log(Level.WARNING, "Error reading login", e);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Error answering login", e);
             return false;
         }
     }
 
-    private Connection initializeConnection(Socket socket) {
-        log.info("New client connection requested: " + socket.getInetAddress());
-        Connection connection;
+    private BlockingConnection initializeConnection(SocketChannel channel, ThreadFactory threads) {
+        BlockingConnection connection;
         try {
-            connection = new Connection(socket, this);
+            connection = new BlockingConnection(channel, this, threads);
 
         } catch (Exception e) {
-            log.warning("" + socket.getInetAddress() + " failed to initialize connection");
+            log.warning("" + channel.socket().getInetAddress() + " failed to initialize connection");
             return null;
         }
 
         return connection;
     }
 
-    public void processUserLeft(String username) {
-        synchronized (connections) {
-            if(connections.containsKey(username)) {
-                log.info("Logging out " + username);
-                ChatMessage userLeft = new ChatMessage(null, username + " has left.");
-                userLeft.setReceiptTime(LocalDateTime.now());
-                broadcast(userLeft);
-                connections.remove(username);
+    public void processUserLeft(Connection connection) {
+        String username = connection.getUsername();
+        if(connections.unregister(username, connection)) {
+            log.fine(() -> "Logging out " + username);
+            bus.presence().release(username);
+            userRates.release(username);
+            addressRates.release(connection.getUserAddress());
+            presence.leave(connection);
+            // This node's users learn about the logout from the roster; the default room only gets
+            // a notice for the other nodes' users.
+            for (Room room : connection.leaveAllRooms()) {
+                room.vacate();
+                room.execute(() -> room.removeMember(connection));
+                if (room != defaultRoom || clustered) {
+                    broadcast(room, notice(username + " has left."));
+                }
             }
         }
     }
 
-    synchronized public void broadcast(ChatMessage message) {
-        log.info("Broadcasting message: " + message);
+    void handleRoomRequest(Connection connection, RoomRequest request) throws IOException {
+        switch (request.getAction()) {
+            case JOIN:
+                joinRoom(connection, request.getRoom(), request.getLastSeenId());
+                break;
+            case LEAVE:
+                leaveRoom(connection, request.getRoom());
+                break;
+            case LIST:
+                connection.send(MessageEncoder.encode(listRooms()));
+                break;
+        }
+    }
 
-        lastMessages.addLast(message);
-        if (lastMessages.size() > RETAIN_MESSAGES) {
-            lastMessages.removeFirst();
+    private void joinRoom(Connection connection, String name, long lastSeenId) throws IOException {
+        if (!RoomRegistry.isValidName(name)) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "invalid room name"));
+            return;
+        }
+        Room existing = rooms.get(name);
+        if (existing != null && connection.isInRoom(existing)) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "already in room " + name));
+            return;
         }
+        if (connection.getRoomCount() >= Config.getMaximumRoomsPerUser()) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR,
+                    "in too many rooms - at most " + Config.getMaximumRoomsPerUser()));
+            return;
+        }
+        Room room = rooms.enter(name);
+        if (room == null) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "maximum number of rooms reached"));
+        } else if (!enterRoom(connection, room, lastSeenId)) {
+            room.vacate();
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "already in room " + name));
+        } else {
+            log.fine(() -> connection.getUsername() + " joins " + name);
+            broadcast(room, notice(connection.getUsername() + " has joined " + name + "."));
+        }
+    }
+
+    private void leaveRoom(Connection connection, String name) throws IOException {
+        Room room = name != null ? rooms.get(name) : null;
+        if (room == defaultRoom) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "cannot leave the default room"));
+        } else if (room == null || !connection.removeRoom(room)) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "not in room " + name));
+        } else {
+            log.fine(() -> connection.getUsername() + " leaves " + name);
+            room.vacate();
+            room.execute(() -> room.removeMember(connection));
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.OK, "left " + name));
+            broadcast(room, notice(connection.getUsername() + " has left " + name + "."));
+        }
+    }
+
+    private RoomList listRooms() {
+        Map<String, Integer> list = new TreeMap<>();
+        for (Room room : rooms.rooms()) {
+            list.put(room.getName(), room.getMembers().size());
+        }
+        return new RoomList(list);
+    }
 
-        for (Connection connection : connections.values()) {
+    // The sender is whoever sent it, whatever the client put in.
+    void sendDirectMessage(Connection connection, DirectMessage message) throws IOException {
+        if (isTooLong(connection, message.getText())) {
+            return;
+        }
+        String recipient = message.getRecipient();
+        if (recipient == null || !credentials.contains(recipient)) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "no such user " + recipient));
+            return;
+        }
+        DirectMessage stamped = new DirectMessage(connection.getUsername(), recipient, message.getText());
+        stamped.setReceiptTime(LocalDateTime.now());
+        if (!directMessages.send(connection.getUsername(), recipient, MessageEncoder.encode(stamped))) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, recipient + " is offline and the message cannot be held"));
+        }
+    }
+
+    void setStatus(Connection connection, UserStatus status) {
+        presence.setStatus(connection, status);
+    }
+
+    // Only members may read a room, as only members may post to it.
+    void sendHistory(Connection connection, HistoryRequest request) throws IOException {
+        String name = roomName(request.getRoom());
+        Room room = rooms.get(name);
+        if (room == null || !connection.isInRoom(room)) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "not in room " + name));
+            return;
+        }
+        connection.send(HistoryPager.page(name, room.getHistory(), request, MAXIMUM_HISTORY_PAGE_SIZE));
+    }
+
+    // Searches run on the room's broadcast worker, which owns the room's search index.
+    // Like reading the history, only for members.
+    void search(Connection connection, SearchRequest request) throws IOException {
+        String name = roomName(request.getRoom());
+        Room room = rooms.get(name);
+        if (room == null || !connection.isInRoom(room)) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "not in room " + name));
+            return;
+        }
+        room.execute(() -> {
+            long start = System.nanoTime();
+            ByteBuffer result = HistoryPager.searchResult(name, room.getHistory(), room.getSearchIndex(), request,
+                    MAXIMUM_HISTORY_PAGE_SIZE);
+            metrics.searchLatency.record(Metrics.micros(start));
             try {
-                connection.sendMessage(message);
+                connection.send(result);
             } catch (IOException e) {
-                log.warning("Error while sending message: " + message + "\n " + e.getMessage());
+                log.warning("Error while sending search result to " + connection.getUsername() + "\n " + e.getMessage());
+            }
+        });
+    }
+
+    void postMessage(Connection connection, ChatMessage message) throws IOException {
+        if (isTooLong(connection, message.getText())) {
+            return;
+        }
+        Room room = rooms.get(roomName(message.getRoom()));
+        if (room == null || !connection.isInRoom(room)) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR,
+                    "not in room " + roomName(message.getRoom())));
+            return;
+        }
+        // The sender is who logged in, whatever the client claims, as it is shown and indexed.
+        broadcast(room, new ChatMessage(message.getRoom(), connection.getUsername(), message.getText()));
+    }
+
+    private static boolean isTooLong(Connection connection, String text) throws IOException {
+        if (text != null && text.length() > Protocol.MAX_TEXT_LENGTH) {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR,
+                    "message too long - at most " + Protocol.MAX_TEXT_LENGTH + " characters"));
+            return true;
+        }
+        return false;
+    }
+
+    // Publishing and fan-out run on the room's broadcast worker, so the caller never waits for
+    // other rooms or for the room's members.
+    void broadcast(Room room, ChatMessage message) {
+        message.setRoom(room.getName());
+        long start = System.nanoTime();
+        room.execute(() -> {
+            bus.publish(message);
+            long micros = Metrics.micros(start);
+            metrics.broadcastLatency.record(micros);
+            if (Tracing.sampled(message.getId())) {
+                Tracing.event("published", "id", message.getId(), "room", room.getName(),
+                        "from", message.getUsername(), "micros", micros);
             }
+        });
+    }
+
+    @Override
+    public void revoke(String username) {
+        Connection connection = connections.get(username);
+        if (connection == null) {
+            return;
         }
+        try {
+            connection.sendMessage(new SystemMessage(SystemMessage.Status.ERROR, "logged in on another node"));
+        } catch (IOException e) {
+            log.fine(() -> "Could not tell " + username + " about the logout: " + e.getMessage());
+        }
+        processUserLeft(connection);
+        connection.closeAfterFlush();
+    }
+
+    @Override
+    public void submit(ChatMessage message) {
+        if (!RoomRegistry.isValidName(roomName(message.getRoom()))) {
+            log.warning("Invalid room in message from another node: " + message);
+            return;
+        }
+        Room room = rooms.getOrCreate(roomName(message.getRoom()));
+        if (room == null) {
+            log.warning("No room for message from another node: " + message);
+            return;
+        }
+        broadcast(room, message);
+    }
+
+    // Sequenced messages come back on the bus in id order per room, so queueing them on the
+    // room's worker keeps the room's history and its members in that order.
+    @Override
+    public void deliver(ChatMessage message, ByteBuffer frame) {
+        if (!RoomRegistry.isValidName(roomName(message.getRoom()))) {
+            log.warning("Invalid room in message: " + message);
+            return;
+        }
+        Room room = rooms.getOrCreate(roomName(message.getRoom()));
+        if (room == null) {
+            log.warning("No room for message: " + message);
+            return;
+        }
+        room.execute(() -> {
+            long start = System.nanoTime();
+            room.append(message, frame);
+            int recipients = 0;
+            for (Connection member : room.getMembers()) {
+                try {
+                    member.send(frame.duplicate());
+                    recipients++;
+                } catch (IOException e) {
+                    log.warning("Error while sending message: " + message + "\n " + e.getMessage());
+                }
+            }
+            long micros = Metrics.micros(start);
+            metrics.messagesDelivered.increment();
+            metrics.framesFannedOut.add(recipients);
+            metrics.fanOutLatency.record(micros);
+            if (Tracing.sampled(message.getId())) {
+                Tracing.event("delivered", "id", message.getId(), "room", room.getName(),
+                        "bytes", frame.remaining(), "recipients", recipients, "micros", micros);
+            }
+        });
     }
 
     public static void main(String[] args) {
+        AsyncLogHandler.install();
         new ZebraServer().run();
     }
 }